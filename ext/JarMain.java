@@ -5,31 +5,68 @@
  * See the file LICENSE.txt for details.
  */
 
+import java.io.ByteArrayInputStream;
 import java.io.Closeable;
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
+import java.io.UnsupportedEncodingException;
+import java.lang.management.ManagementFactory;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.net.URLConnection;
+import java.net.URLDecoder;
+import java.net.URLStreamHandler;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Deque;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
 
 public class JarMain implements Closeable {
 
@@ -40,7 +77,10 @@ public class JarMain implements Closeable {
     private final String path;
 
     protected File extractRoot;
+    private File extractCache;
     final Deque<Closeable> closeables = new ConcurrentLinkedDeque<>();
+    final Profile profile = new Profile();
+    private final Thread shutdownHook = new Thread(this::close, "Warbler-Shutdown");
 
     JarMain(String[] args) {
         this.args = args;
@@ -58,10 +98,11 @@ public class JarMain implements Closeable {
 
         archive = new File(uri.getPath()).getAbsolutePath();
 
-        Runtime.getRuntime().addShutdownHook(new Thread(this::close, "Warbler-Shutdown"));
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
     }
 
     protected URL[] extractArchive() throws Exception {
+        final long start = System.nanoTime();
         try (JarFile jarFile = new JarFile(archive)) {
             Map<String, JarEntry> jarNames = new HashMap<>();
             for (Enumeration<JarEntry> e = jarFile.entries(); e.hasMoreElements(); ) {
@@ -70,18 +111,388 @@ public class JarMain implements Closeable {
                 if (extractPath != null) jarNames.put(extractPath, entry);
             }
 
-            extractRoot = File.createTempFile("jruby", "extract");
-            extractRoot.delete();
+            final List<URL> urls = new ArrayList<>();
+            if (!isExtractJars()) urls.addAll(mapNestedJars(jarNames));
+            if (jarNames.isEmpty()) { // nothing to write to disk
+                debug("prepared class-path in " + (System.nanoTime() - start) / 1000000 + "ms");
+                return urls.toArray(new URL[0]);
+            }
+
+            final File cacheDir = extractCacheDir(jarFile);
+            if (cacheDir != null) {
+                urls.addAll(Arrays.asList(withExtractCacheLock(() -> extractToCache(cacheDir, jarFile, jarNames))));
+            } else {
+                extractRoot = File.createTempFile("jruby", "extract");
+                extractRoot.delete();
+                extractRoot.mkdirs();
+                closeables.add(() -> deleteAll(extractRoot));
+
+                urls.addAll(Arrays.asList(extractEntries(jarFile, jarNames)));
+            }
+            debug("prepared " + jarNames.size() + " entries in " + extractRoot.getPath() +
+                  " in " + (System.nanoTime() - start) / 1000000 + "ms");
+            return urls.toArray(new URL[0]);
+        }
+    }
+
+    /**
+     * <tt>java -Dwarbler.extract.jars=false -jar ...</tt> serves class-path jars stored (uncompressed)
+     * in the archive directly from a memory mapped view of it instead of extracting them.
+     */
+    protected boolean isExtractJars() {
+        return !"false".equals(getSystemProperty("warbler.extract.jars"));
+    }
+
+    /**
+     * @return whether the (extracted) entry belongs to the class-path
+     */
+    protected boolean isClassPathEntry(final String path) {
+        return path.endsWith(".jar");
+    }
+
+    /**
+     * Maps stored class-path jars in place, the mapped entries are removed from the passed entries.
+     * @return class-path URLs for the mapped jars
+     */
+    private List<URL> mapNestedJars(final Map<String, JarEntry> entries) throws IOException {
+        final List<URL> urls = new ArrayList<>();
+        final NestedJarHandler handler;
+        try {
+            handler = getNestedJarHandler();
+        } catch (IOException e) {
+            warn("failed to map " + archive + " (" + e + "), nested jars will be extracted");
+            return urls;
+        }
+
+        for (Iterator<Map.Entry<String, JarEntry>> it = entries.entrySet().iterator(); it.hasNext(); ) {
+            final Map.Entry<String, JarEntry> e = it.next();
+            final JarEntry entry = e.getValue();
+            if (entry.isDirectory() || !isClassPathEntry(e.getKey())) continue;
+
+            if (entry.getMethod() == JarEntry.STORED) {
+                urls.add(handler.mapJar(entry.getName()));
+                it.remove();
+            } else {
+                debug(entry.getName() + " is compressed, extracting it (package jars STORED to avoid extraction)");
+            }
+        }
+        return urls;
+    }
+
+    private URL[] extractToCache(final File cacheDir, final JarFile jarFile, final Map<String, JarEntry> entries)
+        throws Exception {
+        extractRoot = new File(cacheDir, "root");
+        final File classPath = new File(cacheDir, "classpath");
+        final File manifest = new File(cacheDir, "manifest");
+
+        URL[] urls = isExtractedTreeIntact(manifest) ? readCachedClassPath(classPath) : null;
+        if (urls != null) {
+            debug("reusing extracted archive from " + extractRoot.getPath());
+        } else {
+            if (classPath.isFile()) {
+                warn("cached extraction " + extractRoot.getPath() + " is incomplete or was modified, extracting again");
+            }
+            classPath.delete();
+            manifest.delete();
+            deleteAll(extractRoot);
             extractRoot.mkdirs();
-            closeables.add(() -> deleteAll(extractRoot));
+            urls = extractEntries(jarFile, entries);
+            writeExtractedTreeManifest(manifest);
+            writeCachedClassPath(classPath, urls);
+        }
+        cacheDir.setLastModified(System.currentTimeMillis());
+        evictExtractCache(cacheDir);
+        return urls;
+    }
 
-            final List<URL> urls = new ArrayList<>(jarNames.size());
-            for (Map.Entry<String, JarEntry> e : jarNames.entrySet()) {
-                URL entryURL = extractEntry(e.getValue(), e.getKey());
+    /**
+     * Extracts the given entries (keyed by their extract path) from the already open archive,
+     * spreading the work across <tt>warbler.extract.threads</tt> worker threads.
+     */
+    protected URL[] extractEntries(final JarFile jarFile, final Map<String, JarEntry> entries) throws Exception {
+        final List<Callable<URL>> tasks = new ArrayList<>(entries.size());
+        for (Map.Entry<String, JarEntry> e : entries.entrySet()) {
+            tasks.add(() -> extractEntry(jarFile, e.getValue(), e.getKey()));
+        }
+
+        final List<URL> urls = new ArrayList<>(tasks.size());
+        final int threads = Math.min(extractThreads(), tasks.size());
+        if (threads <= 1) {
+            for (Callable<URL> task : tasks) {
+                URL entryURL = task.call();
                 if (entryURL != null) urls.add(entryURL);
             }
-            return urls.toArray(new URL[0]);
+        } else {
+            debug("extracting " + tasks.size() + " entries using " + threads + " threads");
+            final ExecutorService executor = Executors.newFixedThreadPool(threads, runnable -> {
+                Thread thread = new Thread(runnable, "Warbler-Extract");
+                thread.setDaemon(true);
+                return thread;
+            });
+            try {
+                for (Future<URL> future : executor.invokeAll(tasks)) {
+                    URL entryURL = getResult(future);
+                    if (entryURL != null) urls.add(entryURL);
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+        return urls.toArray(new URL[0]);
+    }
+
+    private static <T> T getResult(final Future<T> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof Exception) throw (Exception) cause;
+            throw e;
+        }
+    }
+
+    /**
+     * number of threads used for extraction, <tt>java -Dwarbler.extract.threads=1 -jar ...</tt>
+     * extracts sequentially (defaults to the number of available processors)
+     */
+    protected int extractThreads() {
+        final String threads = getSystemProperty("warbler.extract.threads");
+        if (threads != null) {
+            try {
+                return Integer.parseInt(threads.trim());
+            } catch (NumberFormatException e) {
+                warn("invalid warbler.extract.threads value: " + threads);
+            }
+        }
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Opt-in persistent extraction cache, <tt>java -Dwarbler.extract.cache=/var/cache/warbler -jar ...</tt>
+     * (or the WARBLER_EXTRACT_CACHE environment variable) keeps the extracted tree across launches.
+     * Extractions are keyed by the archive's entry names and CRCs so a re-built archive never reuses
+     * a stale tree, at most <tt>warbler.extract.cache.keep</tt> (3) trees are kept per archive name
+     * (trees still used by a running launcher are never evicted).
+     */
+    protected File extractCacheRoot() {
+        final String dir = getSystemProperty("warbler.extract.cache", getENV("WARBLER_EXTRACT_CACHE"));
+        if (dir == null || dir.isEmpty()) return null;
+        return new File(dir).getAbsoluteFile();
+    }
+
+    /**
+     * @return the (per archive contents) cache directory or null if extraction caching is disabled
+     */
+    protected File extractCacheDir(final JarFile jarFile) throws IOException {
+        if (extractCache == null) {
+            final File cacheRoot = extractCacheRoot();
+            if (cacheRoot == null) return null;
+            extractCache = new File(cacheRoot, new File(archive).getName() + '-' + contentsDigest(jarFile, extractLayout()));
+            debug("extraction cache directory is " + extractCache.getPath());
+            holdExtractCache(extractCache);
+        }
+        return extractCache;
+    }
+
+    protected File extractCacheDir() throws IOException {
+        if (extractCache != null || extractCacheRoot() == null) return extractCache;
+        try (JarFile jarFile = new JarFile(archive)) {
+            return extractCacheDir(jarFile);
+        }
+    }
+
+    private static final int DIGEST_LENGTH = 40;
+
+    /**
+     * @return a description of launcher options changing what gets extracted (part of the cache key)
+     */
+    protected String extractLayout() {
+        return isExtractJars() ? "" : "jars-in-place";
+    }
+
+    static String contentsDigest(final JarFile jarFile, final String layout) throws IOException {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        final ByteBuffer buf = ByteBuffer.allocate(16);
+        digest.update(layout.getBytes(StandardCharsets.UTF_8));
+        for (Enumeration<JarEntry> e = jarFile.entries(); e.hasMoreElements(); ) {
+            JarEntry entry = e.nextElement();
+            digest.update(entry.getName().getBytes(StandardCharsets.UTF_8));
+            buf.clear();
+            buf.putLong(entry.getCrc()).putLong(entry.getSize());
+            digest.update(buf.array());
+        }
+        final StringBuilder hex = new StringBuilder(DIGEST_LENGTH);
+        for (byte b : digest.digest()) hex.append(String.format("%02x", b));
+        return hex.toString();
+    }
+
+    /**
+     * Serializes cache access between JVMs launched from the same archive at the same time.
+     */
+    protected <T> T withExtractCacheLock(final Callable<T> action) throws Exception {
+        final File cacheRoot = extractCache.getParentFile();
+        cacheRoot.mkdirs();
+        final File lockFile = new File(cacheRoot, new File(archive).getName() + ".lock");
+        try (RandomAccessFile file = new RandomAccessFile(lockFile, "rw")) {
+            final FileLock lock = file.getChannel().lock();
+            try {
+                return action.call();
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    static final String EXTRACT_CACHE_LOCK = "in-use.lock";
+
+    private FileChannel extractCacheHold;
+
+    /**
+     * Marks the cache directory as in use by holding a shared lock on it until the launcher exits,
+     * other launchers do not evict a tree they can not lock exclusively.
+     */
+    private void holdExtractCache(final File cacheDir) throws IOException {
+        if (extractCacheHold != null) return;
+        try {
+            extractCacheHold = withExtractCacheLock(() -> { // not while another launcher is evicting
+                cacheDir.mkdirs();
+                final FileChannel channel = FileChannel.open(new File(cacheDir, EXTRACT_CACHE_LOCK).toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                try {
+                    channel.lock(0, Long.MAX_VALUE, true);
+                } catch (IOException | RuntimeException e) {
+                    channel.close();
+                    throw e;
+                }
+                closeables.add(channel); // closing the channel releases the lock
+                return channel;
+            });
+        } catch (IOException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * @return whether the cached extraction is used (its tree is shared between launchers)
+     */
+    protected boolean isExtractCached() {
+        return extractCache != null;
+    }
+
+    /**
+     * Records the size of every extracted file and marks the files read-only, a shared tree is
+     * only reused as long as it matches the manifest (not truncated or partially cleaned up).
+     */
+    private void writeExtractedTreeManifest(final File manifest) throws IOException {
+        final Path root = extractRoot.toPath();
+        final List<String> lines = new ArrayList<>();
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (attrs.isRegularFile()) {
+                    lines.add(attrs.size() + "\t" + root.relativize(file).toString().replace(File.separatorChar, '/'));
+                    file.toFile().setReadOnly();
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        Files.write(manifest.toPath(), lines, StandardCharsets.UTF_8);
+    }
+
+    private boolean isExtractedTreeIntact(final File manifest) throws IOException {
+        if (!manifest.isFile()) return false;
+        for (String line : Files.readAllLines(manifest.toPath(), StandardCharsets.UTF_8)) {
+            final int tab = line.indexOf('\t');
+            final File file = new File(extractRoot, line.substring(tab + 1));
+            try {
+                if (tab < 0 || !file.isFile() || file.length() != Long.parseLong(line.substring(0, tab))) {
+                    debug("cached extraction differs from its manifest at " + file.getPath());
+                    return false;
+                }
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static URL[] readCachedClassPath(final File classPath) throws IOException {
+        if (!classPath.isFile()) return null;
+        final List<String> lines = Files.readAllLines(classPath.toPath(), StandardCharsets.UTF_8);
+        final URL[] urls = new URL[lines.size()];
+        for (int i = 0; i < urls.length; i++) {
+            final File file = new File(lines.get(i));
+            if (!file.exists()) return null; // partially cleaned up (e.g. tmpwatch) - extract again
+            urls[i] = file.toURI().toURL();
+        }
+        return urls;
+    }
+
+    private static void writeCachedClassPath(final File classPath, final URL[] urls) throws Exception {
+        final List<String> lines = new ArrayList<>(urls.length);
+        for (URL url : urls) lines.add(new File(url.toURI()).getPath());
+        // written last, marks the extracted tree as complete
+        Files.write(classPath.toPath(), lines, StandardCharsets.UTF_8);
+    }
+
+    protected void evictExtractCache(final File current) {
+        int keep = 3;
+        try {
+            keep = Integer.parseInt(getSystemProperty("warbler.extract.cache.keep", "3").trim());
+        } catch (NumberFormatException e) {
+            warn("invalid warbler.extract.cache.keep value, keeping " + keep + " extractions");
+        }
+        final String prefix = new File(archive).getName() + '-';
+        final File[] cached = current.getParentFile().listFiles(file ->
+            file.isDirectory() && !file.equals(current) &&
+            file.getName().startsWith(prefix) && file.getName().length() == prefix.length() + DIGEST_LENGTH
+        );
+        if (cached == null || cached.length < keep) return;
+
+        Arrays.sort(cached, (f1, f2) -> Long.compare(f2.lastModified(), f1.lastModified()));
+        for (int i = Math.max(keep - 1, 0); i < cached.length; i++) {
+            if (evictExtractCacheDir(cached[i])) {
+                debug("evicted cached extraction " + cached[i].getPath());
+            } else {
+                debug("not evicting cached extraction " + cached[i].getPath() + ", it is in use");
+            }
+        }
+    }
+
+    /**
+     * Deletes a cached extraction unless a running launcher holds (a shared lock on) it.
+     */
+    private boolean evictExtractCacheDir(final File cacheDir) {
+        final File lockFile = new File(cacheDir, EXTRACT_CACHE_LOCK);
+        try (FileChannel channel = FileChannel.open(lockFile.toPath(),
+            StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            final FileLock lock = channel.tryLock();
+            if (lock == null) return false;
+            try {
+                final File[] children = cacheDir.listFiles();
+                if (children != null) {
+                    for (File child : children) {
+                        if (!child.equals(lockFile)) deleteAll(child);
+                    }
+                }
+            } finally {
+                lock.release();
+            }
+        } catch (OverlappingFileLockException e) {
+            return false; // held by this JVM
+        } catch (IOException e) {
+            debug("failed to lock " + lockFile.getPath() + " (" + e + ")");
+            return false;
         }
+        deleteAll(cacheDir); // the lock file (and directory), once the channel is closed
+        return true;
     }
 
     protected String getExtractEntryPath(final JarEntry entry) {
@@ -92,30 +503,81 @@ public class JarMain implements Closeable {
         return null; // do not extract entry
     }
 
-    protected URL extractEntry(final JarEntry entry, String path) throws Exception {
+    protected URL extractEntry(final JarFile jarFile, final JarEntry entry, String path) throws Exception {
         File file = new File(extractRoot, path);
         if (entry.isDirectory()) {
             file.mkdirs();
             return null;
         }
-        final String entryPath = entryPath(entry.getName());
-        final InputStream entryStream;
-        try {
-            entryStream = new URI("jar", entryPath, null).toURL().openStream();
-        } catch (IllegalArgumentException e) {
-            // TODO gems '%' file name "encoding" ?!
-            debug("failed to open jar:" + entryPath + " skipping entry: " + entry.getName(), e);
-            return null;
-        }
         final File parent = file.getParentFile();
         if (parent != null) parent.mkdirs();
 
-        transferAndClose(() -> entryStream, () -> new FileOutputStream(file));
-        file.deleteOnExit();
+        copyEntry(jarFile, entry, file);
+        profile.extracted(entry.getSize() >= 0 ? entry.getSize() : file.length());
+        // no File.deleteOnExit, a (temporary) extractRoot gets deleted as a whole on close
         // if (false) debug(entry.getName() + " extracted to " + file.getPath());
         return file.toURI().toURL();
     }
 
+    /**
+     * Copies an archive entry to the given file, stored entries are transferred straight from the
+     * archive's file channel while compressed entries are inflated through the (shared) jar file.
+     */
+    protected void copyEntry(final JarFile jarFile, final JarEntry entry, final File file) throws Exception {
+        final ZipDirectory.Entry stored = entry.getMethod() == JarEntry.STORED ? getStoredEntry(entry) : null;
+        if (stored == null) {
+            transferAndClose(() -> jarFile.getInputStream(entry), () -> new FileOutputStream(file));
+            return;
+        }
+
+        final FileChannel archiveChannel = getArchiveChannel();
+        final long offset = getArchiveDirectory().getDataOffset(stored);
+        try (FileChannel output = FileChannel.open(file.toPath(),
+            StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            long position = 0;
+            while (position < stored.size) {
+                position += archiveChannel.transferTo(offset + position, stored.size - position, output);
+            }
+        }
+    }
+
+    private ZipDirectory.Entry getStoredEntry(final JarEntry entry) {
+        try {
+            return getArchiveDirectory().getEntry(entry.getName());
+        } catch (IOException e) { // e.g. archives larger than 2GB can not be mapped
+            debug("failed to map " + archive + " (" + e + ")");
+            return null;
+        }
+    }
+
+    private ZipDirectory archiveDirectory;
+    private FileChannel archiveChannel;
+
+    protected synchronized ZipDirectory getArchiveDirectory() throws IOException {
+        if (archiveDirectory == null) archiveDirectory = ZipDirectory.map(new File(archive));
+        return archiveDirectory;
+    }
+
+    private NestedJarHandler nestedJarHandler;
+
+    /**
+     * @return the handler serving (class-path) jars stored in the archive, URLs passed to the class loader
+     * carry it along (no JVM wide URL stream handler factory is installed)
+     */
+    protected synchronized NestedJarHandler getNestedJarHandler() throws IOException {
+        if (nestedJarHandler == null) nestedJarHandler = new NestedJarHandler(getArchiveDirectory());
+        return nestedJarHandler;
+    }
+
+    private synchronized FileChannel getArchiveChannel() throws IOException {
+        if (archiveChannel == null) {
+            final FileChannel channel = FileChannel.open(new File(archive).toPath(), StandardOpenOption.READ);
+            closeables.add(channel);
+            archiveChannel = channel;
+        }
+        return archiveChannel;
+    }
+
     protected String entryPath(String name) {
         if (!name.startsWith("/")) name = "/" + name;
         return path.replace(MAIN, name);
@@ -128,15 +590,19 @@ public class JarMain implements Closeable {
         Class<?> scriptingContainerClass = Class.forName("org.jruby.embed.ScriptingContainer", true, scriptingClassLoader);
         Object scriptingContainer = scriptingContainerClass.newInstance();
         debug("scripting container class loader urls: " + Arrays.toString(jars));
+        profile.classPathURLs = jars.length;
         invokeMethod(scriptingContainer, "setArgv", (Object) args);
         invokeMethod(scriptingContainer, "setClassLoader", new Class[]{ClassLoader.class}, scriptingClassLoader);
         return scriptingContainer;
     }
 
     protected int launchJRuby(final URL[] jars) throws Exception {
+        long time = System.nanoTime();
         final Object scriptingContainer = newScriptingContainer(jars);
+        time = profile.phase("runtime", time);
         debug("invoking " + archive + " with: " + Arrays.deepToString(args));
         Object outcome = invokeMethod(scriptingContainer, "runScriptlet", launchScript());
+        profile.phase("run", time);
         return (outcome instanceof Number) ? ((Number) outcome).intValue() : 0;
     }
 
@@ -152,15 +618,128 @@ public class JarMain implements Closeable {
     }
 
     protected int start() throws Exception {
+        final long time = System.nanoTime();
         final URL[] jars = extractArchive();
+        profile.phase("extract", time);
         return launchJRuby(jars);
     }
 
-    protected void debug(String msg) {
+    /**
+     * Reports the startup profile (once), printed with <tt>warbler.debug</tt> and written as JSON
+     * to the file given by <tt>java -Dwarbler.profile=/tmp/profile.json -jar ...</tt>.
+     */
+    protected void reportProfile() {
+        final String profilePath = getSystemProperty("warbler.profile");
+        if ((!isDebug() && profilePath == null) || !profile.report()) return;
+        debug("startup profile: " + profile);
+        if (profilePath != null) {
+            try {
+                Files.write(new File(profilePath).toPath(), profile.toJSON(archive).getBytes(StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                warn("failed to write startup profile to " + profilePath + " (" + e + ")");
+            }
+        }
+    }
+
+    /**
+     * Class Data Sharing (opt-in): <tt>java -Dwarbler.cds=true -jar ...</tt> uses the dynamic CDS archive next
+     * to the runnable archive (<tt>my.war.jsa</tt>, as trained by <tt>warble cds</tt>), or the one given using
+     * <tt>-Dwarbler.cds=/path/to/my.jsa</tt>: the launcher relaunches the JVM using it (<tt>-XX:SharedArchiveFile</tt>),
+     * so that classes (JRuby, JRuby-Rack, the web server) are mapped from the archive instead of being loaded and
+     * verified again. Archived classes are only shared if the class-path jars are found where they were during
+     * training, thus the extraction layout needs to be stable: <tt>warbler.extract.cache</tt> (by default
+     * <tt>my.war.cache</tt>, as used by <tt>warble cds</tt>) or <tt>warbler.extract.jars=false</tt>.
+     * @return the CDS archive to relaunch with or null
+     */
+    protected File sharedArchiveFile() {
+        final String cds = getSystemProperty("warbler.cds", "false");
+        if ("false".equals(cds) || "off".equals(cds)) return null;
+        final boolean auto = "true".equals(cds) || "auto".equals(cds);
+        final File sharedArchive = auto ? new File(archive + ".jsa") : new File(cds).getAbsoluteFile();
+        if (!sharedArchive.isFile()) {
+            warn("CDS archive " + sharedArchive.getPath() + " not found");
+            return null;
+        }
+        if (javaSpecificationVersion() < 13) {
+            debug("not using " + sharedArchive.getPath() + ", dynamic CDS archives need Java 13 or later");
+            return null;
+        }
+        return sharedArchive;
+    }
+
+    static final String CDS_EXTRACT_CACHE = ".cache";
+
+    // JVM options the relaunched JVM can not share with the JVM launching it (the debugger, agents or JMX
+    // bound to a port, attached to the launching JVM)
+    private static final String[] NOT_RELAUNCHED = {
+        "-agentlib", "-agentpath", "-javaagent", "-Xrunjdwp", "-Xdebug", "-Dcom.sun.management.jmxremote"
+    };
+
+    /**
+     * Relaunches the JVM (with the same JVM options and arguments) using the CDS archive, unless
+     * the JVM has been launched with explicit CDS options (e.g. for training) already. The relaunch
+     * costs a JVM start, it only pays off for the classes loaded from the CDS archive.
+     * With a debugger, an agent or JMX the JVM is not relaunched (without using CDS).
+     * @return the exit status of the relaunched JVM or null if not relaunched
+     * @see #sharedArchiveFile()
+     */
+    protected Integer relaunchWithSharedArchive() throws Exception {
+        if (getSystemProperty("warbler.cds.training") != null) return null;
+        final List<String> jvmArgs = ManagementFactory.getRuntimeMXBean().getInputArguments();
+        for (String arg : jvmArgs) {
+            if (arg.startsWith("-XX:SharedArchiveFile") || arg.startsWith("-XX:ArchiveClassesAtExit") ||
+                arg.startsWith("-Xshare")) return null;
+        }
+        final File sharedArchive = sharedArchiveFile();
+        if (sharedArchive == null) return null;
+        for (String arg : jvmArgs) {
+            for (String option : NOT_RELAUNCHED) {
+                if (arg.startsWith(option)) {
+                    debug("not relaunching with CDS archive " + sharedArchive.getPath() + " (" + arg + ")");
+                    return null;
+                }
+            }
+        }
+
+        final List<String> command = new ArrayList<>(jvmArgs.size() + args.length + 5);
+        command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+        command.add("-XX:SharedArchiveFile=" + sharedArchive.getPath());
+        if (isExtractJars() && extractCacheRoot() == null) { // the (stable) layout warble cds trains with
+            command.add("-Dwarbler.extract.cache=" + archive + CDS_EXTRACT_CACHE);
+        }
+        command.addAll(jvmArgs);
+        command.add("-jar");
+        command.add(archive);
+        command.addAll(Arrays.asList(args));
+        debug("relaunching with CDS archive: " + command);
+
+        profile.report(); // the relaunched JVM reports its own startup profile
+        final Process process = new ProcessBuilder(command).inheritIO().start();
+        closeables.add(() -> { // forward termination (SIGTERM) and wait for the JVM to stop (drain)
+            process.destroy();
+            try {
+                process.waitFor();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        return process.waitFor();
+    }
+
+    static int javaSpecificationVersion() {
+        final String version = System.getProperty("java.specification.version", "1.8");
+        try {
+            return Integer.parseInt(version.startsWith("1.") ? version.substring(2) : version);
+        } catch (NumberFormatException e) {
+            return 8;
+        }
+    }
+
+    protected static void debug(String msg) {
         debug(msg, null);
     }
 
-    protected void debug(String msg, Throwable t) {
+    protected static void debug(String msg, Throwable t) {
         if (isDebug()) System.out.println(msg);
         if (isDebug() && t != null) t.printStackTrace(System.out);
     }
@@ -173,7 +752,7 @@ public class JarMain implements Closeable {
         if (isDebug()) t.printStackTrace(out);
     }
 
-    protected void warn(String msg) {
+    protected static void warn(String msg) {
         System.out.println("WARNING: " + msg);
     }
 
@@ -196,7 +775,7 @@ public class JarMain implements Closeable {
                     }
                 }
             }
-            f.delete();
+            if (!f.delete() && f.exists() && f.setWritable(true)) f.delete(); // read-only (cached) on Windows
         } catch (IOException e) {
             error(e);
         }
@@ -213,8 +792,20 @@ public class JarMain implements Closeable {
         return !canonical.getCanonicalFile().equals(canonical.getAbsoluteFile());
     }
 
+    /**
+     * Releases the launcher's resources (deleting a temporary extraction), done on shutdown
+     * unless the launcher gets closed explicitly (e.g. when embedded).
+     */
     @Override
     public void close() {
+        if (Thread.currentThread() != shutdownHook) {
+            try {
+                Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            } catch (IllegalStateException e) {
+                // already shutting down
+            }
+        }
+        reportProfile(); // a (web) server is only done when shutting down
         closeables.descendingIterator().forEachRemaining(closeableResource -> {
             try {
                 closeableResource.close();
@@ -231,7 +822,8 @@ public class JarMain implements Closeable {
     protected static void doStart(final JarMain main) {
         int exit;
         try {
-            exit = main.start();
+            final Integer relaunched = main.relaunchWithSharedArchive();
+            exit = relaunched != null ? relaunched : main.start();
         } catch (Exception e) {
             Throwable t = e;
             while (t.getCause() != null && t.getCause() != t) {
@@ -240,6 +832,7 @@ public class JarMain implements Closeable {
             error(e.toString(), t);
             exit = 1;
         }
+        main.reportProfile();
         try {
             if (isSystemExitEnabled()) System.exit(exit);
         } catch (SecurityException e) {
@@ -324,14 +917,354 @@ public class JarMain implements Closeable {
         }
     }
 
+    private static final ThreadLocal<byte[]> TRANSFER_BUFFER = ThreadLocal.withInitial(() -> new byte[16384]);
+
     // Can be replaced with InputStream.transferTo(OutputStream) in Java 11+
     static void transferAndClose(Callable<InputStream> is, Callable<OutputStream> os) throws Exception {
         try (InputStream input = is.call(); OutputStream output = os.call()) {
-            byte[] buf = new byte[16384];
+            byte[] buf = TRANSFER_BUFFER.get();
             int bytesRead;
             while ((bytesRead = input.read(buf)) != -1) {
                 output.write(buf, 0, bytesRead);
             }
         }
     }
+
+    /**
+     * Startup profile: the (nanosecond) durations of the launch phases along with the number of
+     * entries and bytes extracted and the number of class-path URLs of the scripting container.
+     */
+    static final class Profile {
+
+        private final long start = System.nanoTime();
+        private final Map<String, Long> phases = new LinkedHashMap<>();
+        private final AtomicLong extractedEntries = new AtomicLong();
+        private final AtomicLong extractedBytes = new AtomicLong();
+        volatile int classPathURLs;
+        private long total = -1;
+
+        /**
+         * Records the time passed since the given (start) time as the named phase.
+         * @return the current time, i.e. the start of the next phase
+         */
+        synchronized long phase(final String name, final long since) {
+            final long now = System.nanoTime();
+            phases.merge(name, now - since, Long::sum);
+            return now;
+        }
+
+        void extracted(final long bytes) {
+            extractedEntries.incrementAndGet();
+            extractedBytes.addAndGet(bytes);
+        }
+
+        /**
+         * @return whether the profile is to be reported (it has not been yet)
+         */
+        synchronized boolean report() {
+            if (total >= 0) return false;
+            total = System.nanoTime() - start;
+            return true;
+        }
+
+        @Override
+        public synchronized String toString() {
+            final StringBuilder str = new StringBuilder();
+            for (Map.Entry<String, Long> phase : phases.entrySet()) {
+                str.append(phase.getKey()).append(' ').append(millis(phase.getValue())).append(", ");
+            }
+            return str.append("total ").append(millis(total)).
+                append("; extracted ").append(extractedEntries.get()).append(" entries (").
+                append(extractedBytes.get()).append(" bytes), ").
+                append(classPathURLs).append(" class-path URLs").toString();
+        }
+
+        private static String millis(final long nanos) {
+            return String.format(Locale.ROOT, "%.1fms", nanos / 1000000.0);
+        }
+
+        synchronized String toJSON(final String archive) {
+            final StringBuilder json = new StringBuilder("{\n");
+            json.append("  \"archive\": \"").append(archive.replace("\\", "\\\\").replace("\"", "\\\"")).append("\",\n");
+            json.append("  \"phases\": {");
+            String separator = "\n";
+            for (Map.Entry<String, Long> phase : phases.entrySet()) {
+                json.append(separator).append("    \"").append(phase.getKey()).append("\": ").append(phase.getValue());
+                separator = ",\n";
+            }
+            json.append(phases.isEmpty() ? "},\n" : "\n  },\n");
+            json.append("  \"total\": ").append(total).append(",\n");
+            json.append("  \"extracted_entries\": ").append(extractedEntries.get()).append(",\n");
+            json.append("  \"extracted_bytes\": ").append(extractedBytes.get()).append(",\n");
+            json.append("  \"class_path_urls\": ").append(classPathURLs).append("\n");
+            return json.append("}\n").toString();
+        }
+    }
+
+    /**
+     * A read-only view of a zip archive (or a stored archive nested within one) based on its
+     * central directory, entry data is accessed through the (memory mapped) buffer directly.
+     */
+    static final class ZipDirectory {
+
+        static final class Entry {
+            final String name;
+            final int method;
+            final long time; // MS-DOS date and time
+            final long crc;
+            final long compressedSize;
+            final long size;
+            final long localHeaderOffset;
+
+            Entry(String name, int method, long time, long crc, long compressedSize, long size, long localHeaderOffset) {
+                this.name = name;
+                this.method = method;
+                this.time = time;
+                this.crc = crc;
+                this.compressedSize = compressedSize;
+                this.size = size;
+                this.localHeaderOffset = localHeaderOffset;
+            }
+
+            boolean isDirectory() {
+                return name.endsWith("/");
+            }
+        }
+
+        private static final int LOCAL_HEADER = 0x04034b50;
+        private static final int CENTRAL_HEADER = 0x02014b50;
+        private static final int END_HEADER = 0x06054b50;
+        private static final int ZIP64_END_HEADER = 0x06064b50;
+        private static final int ZIP64_LOCATOR = 0x07064b50;
+
+        private final ByteBuffer buffer;
+        private final Map<String, Entry> entries;
+
+        ZipDirectory(final ByteBuffer buffer) throws IOException {
+            this.buffer = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+            this.entries = readEntries();
+        }
+
+        static ZipDirectory map(final File file) throws IOException {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                if (channel.size() > Integer.MAX_VALUE) {
+                    throw new IOException(file + " is too large to be mapped");
+                }
+                return new ZipDirectory(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            }
+        }
+
+        Entry getEntry(final String name) {
+            return entries.get(name);
+        }
+
+        Collection<Entry> getEntries() {
+            return entries.values();
+        }
+
+        /**
+         * @return the offset of the entry's (compressed) data within this archive
+         */
+        long getDataOffset(final Entry entry) throws IOException {
+            final int offset = (int) entry.localHeaderOffset;
+            if (buffer.getInt(offset) != LOCAL_HEADER) {
+                throw new ZipException("invalid local header for " + entry.name);
+            }
+            return offset + 30 + (buffer.getShort(offset + 26) & 0xFFFF) + (buffer.getShort(offset + 28) & 0xFFFF);
+        }
+
+        /**
+         * @return the entry's raw (possibly compressed) data
+         */
+        ByteBuffer getData(final Entry entry) throws IOException {
+            final ByteBuffer data = buffer.duplicate();
+            final int offset = (int) getDataOffset(entry);
+            data.limit(offset + (int) entry.compressedSize).position(offset);
+            return data.slice();
+        }
+
+        InputStream getInputStream(final Entry entry) throws IOException {
+            final InputStream data = new ByteBufferInputStream(getData(entry));
+            switch (entry.method) {
+                case ZipEntry.STORED:
+                    return data;
+                case ZipEntry.DEFLATED: // raw inflating might need an extra "dummy" byte of input
+                    final InputStream input = new SequenceInputStream(data, new ByteArrayInputStream(new byte[1]));
+                    return new InflaterInputStream(input, new Inflater(true), 8192) {
+                        private boolean closed;
+
+                        @Override
+                        public void close() throws IOException {
+                            if (closed) return;
+                            closed = true;
+                            try {
+                                super.close();
+                            } finally {
+                                inf.end(); // release the native zlib memory now rather than on finalization
+                            }
+                        }
+                    };
+                default:
+                    throw new ZipException("unsupported compression method " + entry.method + " for " + entry.name);
+            }
+        }
+
+        private Map<String, Entry> readEntries() throws IOException {
+            final int end = findEndHeader();
+            long count = buffer.getShort(end + 10) & 0xFFFF;
+            long offset = buffer.getInt(end + 16) & 0xFFFFFFFFL;
+            if ((count == 0xFFFF || offset == 0xFFFFFFFFL) && end >= 20 && buffer.getInt(end - 20) == ZIP64_LOCATOR) {
+                final int zip64End = (int) buffer.getLong(end - 12);
+                if (buffer.getInt(zip64End) != ZIP64_END_HEADER) throw new ZipException("invalid zip64 end header");
+                count = buffer.getLong(zip64End + 32);
+                offset = buffer.getLong(zip64End + 48);
+            }
+
+            final Map<String, Entry> entries = new LinkedHashMap<>((int) (count * 4 / 3) + 1);
+            int pos = (int) offset;
+            for (long i = 0; i < count; i++) {
+                if (buffer.getInt(pos) != CENTRAL_HEADER) throw new ZipException("invalid central directory header");
+                final int method = buffer.getShort(pos + 10) & 0xFFFF;
+                final long time = buffer.getInt(pos + 12) & 0xFFFFFFFFL;
+                final long crc = buffer.getInt(pos + 16) & 0xFFFFFFFFL;
+                long compressedSize = buffer.getInt(pos + 20) & 0xFFFFFFFFL;
+                long size = buffer.getInt(pos + 24) & 0xFFFFFFFFL;
+                final int nameLength = buffer.getShort(pos + 28) & 0xFFFF;
+                final int extraLength = buffer.getShort(pos + 30) & 0xFFFF;
+                final int commentLength = buffer.getShort(pos + 32) & 0xFFFF;
+                long localHeaderOffset = buffer.getInt(pos + 42) & 0xFFFFFFFFL;
+
+                final byte[] name = new byte[nameLength];
+                final ByteBuffer header = buffer.duplicate();
+                header.position(pos + 46);
+                header.get(name);
+
+                // zip64 extended information (only holds the values which overflowed)
+                for (int extra = pos + 46 + nameLength; extra < pos + 46 + nameLength + extraLength; ) {
+                    final int id = buffer.getShort(extra) & 0xFFFF;
+                    final int length = buffer.getShort(extra + 2) & 0xFFFF;
+                    if (id == 0x0001) {
+                        int field = extra + 4;
+                        if (size == 0xFFFFFFFFL) { size = buffer.getLong(field); field += 8; }
+                        if (compressedSize == 0xFFFFFFFFL) { compressedSize = buffer.getLong(field); field += 8; }
+                        if (localHeaderOffset == 0xFFFFFFFFL) { localHeaderOffset = buffer.getLong(field); }
+                    }
+                    extra += 4 + length;
+                }
+
+                final String entryName = new String(name, StandardCharsets.UTF_8);
+                entries.put(entryName, new Entry(entryName, method, time, crc, compressedSize, size, localHeaderOffset));
+                pos += 46 + nameLength + extraLength + commentLength;
+            }
+            return entries;
+        }
+
+        private int findEndHeader() throws ZipException {
+            final int limit = buffer.limit();
+            for (int pos = limit - 22; pos >= Math.max(0, limit - 22 - 0xFFFF); pos--) {
+                if (buffer.getInt(pos) == END_HEADER) return pos;
+            }
+            throw new ZipException("end of central directory not found");
+        }
+    }
+
+    static final class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int off, int len) {
+            if (len == 0) return 0;
+            if (!buffer.hasRemaining()) return -1;
+            len = Math.min(len, buffer.remaining());
+            buffer.get(bytes, off, len);
+            return len;
+        }
+
+        @Override
+        public long skip(long n) {
+            final int skip = (int) Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + skip);
+            return skip;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+
+    /**
+     * Serves resources of (stored) jars nested in the archive, e.g. <tt>warbler:/META-INF/lib/jruby.jar!/org/jruby/Ruby.class</tt>
+     * (URLs relative to a mapped jar URL resolve through the same handler).
+     */
+    static final class NestedJarHandler extends URLStreamHandler {
+
+        static final String PROTOCOL = "warbler";
+
+        private final ZipDirectory archive;
+        private final Map<String, ZipDirectory> jars = new ConcurrentHashMap<>();
+
+        NestedJarHandler(ZipDirectory archive) {
+            this.archive = archive;
+        }
+
+        URL mapJar(final String name) throws IOException {
+            final ZipDirectory.Entry entry = archive.getEntry(name);
+            if (entry == null) throw new FileNotFoundException(name);
+            jars.put(name, new ZipDirectory(archive.getData(entry)));
+            return new URL(null, PROTOCOL + ":/" + name + "!/", this);
+        }
+
+        @Override
+        protected URLConnection openConnection(final URL url) throws IOException {
+            final String path = url.getPath();
+            final int separator = path.indexOf("!/");
+            final ZipDirectory jar = separator == -1 ? null : jars.get(path.substring(1, separator));
+            if (jar == null) throw new FileNotFoundException(url.toString());
+
+            final ZipDirectory.Entry entry = jar.getEntry(decode(path.substring(separator + 2)));
+            return new URLConnection(url) {
+                @Override
+                public void connect() throws IOException {
+                    if (entry == null) throw new FileNotFoundException(url.toString());
+                    connected = true;
+                }
+
+                @Override
+                public InputStream getInputStream() throws IOException {
+                    connect();
+                    return jar.getInputStream(entry);
+                }
+
+                @Override
+                public long getContentLengthLong() {
+                    return entry == null ? -1 : entry.size;
+                }
+
+                @Override
+                public int getContentLength() {
+                    return entry == null || entry.size > Integer.MAX_VALUE ? -1 : (int) entry.size;
+                }
+            };
+        }
+
+        private static String decode(final String name) {
+            if (name.indexOf('%') == -1) return name;
+            try {
+                return URLDecoder.decode(name.replace("+", "%2B"), "UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                return name;
+            }
+        }
+    }
 }
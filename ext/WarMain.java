@@ -6,21 +6,41 @@
  */
 
 import java.io.ByteArrayInputStream;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.SequenceInputStream;
+import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.Socket;
 import java.net.URI;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
 import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
 
 /**
  * Used as a Main-Class in the manifest for a .war file, so that you can run
@@ -32,11 +52,15 @@ import java.util.jar.JarEntry;
  * <p/>
  * When WarMain starts up, it extracts the webserver jar to a temporary
  * directory, and creates a temporary work directory for the webapp. Both
- * are deleted on exit.
+ * are deleted on exit (unless the <tt>warbler.extract.cache</tt> directory
+ * is set, in which case both are kept there and re-used on the next start).
+ * With <tt>warbler.extract.jars=false</tt> the (stored) webserver jar is
+ * loaded in place, from the .war file, instead of being extracted.
  * <p/>
  * It then reads webserver.properties into a java.util.Properties object,
  * creates a URL classloader holding the jar, and loads and invokes the
- * <tt>main</tt> method of the main class mentioned in the properties.
+ * <tt>main</tt> method of the main class mentioned in the properties
+ * (or starts the {@link WebServerLauncher} named by the <tt>launcher</tt> property).
  * <p/>
  * An example webserver.properties follows for Jetty. The <tt>args</tt>
  * property indicates the names and ordering of other properties to be used
@@ -69,6 +93,7 @@ public class WarMain extends JarMain {
     static final String WEBSERVER_CONFIG = "/WEB-INF/webserver.xml";
     static final String WEB_INF = "WEB-INF";
     static final String META_INF = "META-INF";
+    static final String WEB_INF_GEMS = "WEB-INF/gems/";
 
     /**
      *  jruby arguments, consider the following command :
@@ -114,32 +139,122 @@ public class WarMain extends JarMain {
     }
 
     private void launchWebServer() throws Exception {
+        long time = System.nanoTime();
         File webroot = createWebRoot();
-        File jarFile = extractWebServerJar();
+        URL jar = isExtractJars() ? null : mapWebServerJar();
+        if (jar == null) jar = extractWebServerJar().toURI().toURL();
+        profile.phase("extract", time);
 
-        doLaunchWebServer(jarFile, webroot);
+        doLaunchWebServer(jar, webroot);
     }
 
     private File createWebRoot() throws IOException {
-        File warblerRoot = File.createTempFile("warbler", "webroot");
-        warblerRoot.delete();
-        warblerRoot.mkdirs();
-        closeables.add(() -> deleteAll(warblerRoot));
+        final File cacheDir = extractCacheDir();
+        final File warblerRoot;
+        if (cacheDir != null) {
+            warblerRoot = lockWebRootSlot(new File(cacheDir, "webroot"));
+        } else {
+            warblerRoot = File.createTempFile("warbler", "webroot");
+            warblerRoot.delete();
+            warblerRoot.mkdirs();
+            closeables.add(() -> deleteAll(warblerRoot));
+        }
 
         File webroot = new File(warblerRoot, new File(archive).getName());
+        if (cacheDir != null) {
+            // with a jetty.base/work directory Jetty keeps (and re-uses) the war it unpacked
+            new File(webroot, "work").mkdirs();
+        }
         debug("webroot directory is " + webroot.getPath());
         return webroot;
     }
 
+    /**
+     * The webroot in the extraction cache (and Jetty's work directory, where the war gets unpacked)
+     * is not shared by launchers running at the same time: each one locks a slot of its own, the
+     * first one that is not locked, until it exits. A launcher started later on re-uses the slot
+     * (and the war unpacked there) while another launcher can not unpack into it concurrently.
+     */
+    private File lockWebRootSlot(final File webroots) throws IOException {
+        webroots.mkdirs();
+        for (int slot = 0; ; slot++) {
+            final FileChannel channel = FileChannel.open(new File(webroots, slot + ".lock").toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            FileLock lock = null;
+            try {
+                lock = channel.tryLock();
+            } catch (OverlappingFileLockException e) {
+                // locked by another launcher within this JVM
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+            if (lock != null) {
+                closeables.add(channel); // closing the channel releases the lock
+                final File slotDir = new File(webroots, Integer.toString(slot));
+                slotDir.mkdirs();
+                return slotDir;
+            }
+            channel.close();
+        }
+    }
+
+    /**
+     * With <tt>warbler.extract.jars=false</tt> a (stored) webserver.jar is loaded in place.
+     * @return the webserver.jar's (in place) URL or null if it needs to be extracted
+     */
+    private URL mapWebServerJar() {
+        try {
+            final ZipDirectory.Entry entry = getArchiveDirectory().getEntry(WEBSERVER_JAR.substring(1));
+            if (entry == null) return null;
+            if (entry.method != JarEntry.STORED) {
+                debug(entry.name + " is compressed, extracting it (package jars STORED to avoid extraction)");
+                return null;
+            }
+            final URL jar = getNestedJarHandler().mapJar(entry.name);
+            debug("webserver.jar loaded in place from " + jar);
+            return jar;
+        } catch (IOException e) {
+            warn("failed to map " + archive + " (" + e + "), webserver.jar will be extracted");
+            return null;
+        }
+    }
+
     private File extractWebServerJar() throws Exception {
+        final File cacheDir = extractCacheDir();
+        if (cacheDir != null) {
+            return withExtractCacheLock(() -> {
+                final File jarFile = new File(cacheDir, "webserver.jar");
+                if (jarFile.isFile()) {
+                    debug("reusing webserver.jar from " + jarFile.getPath());
+                    return jarFile;
+                }
+                cacheDir.mkdirs();
+                final File tmpFile = new File(cacheDir, "webserver.jar.tmp");
+                extractWebServerJar(tmpFile);
+                if (!tmpFile.renameTo(jarFile)) {
+                    throw new IOException("failed to move " + tmpFile + " to " + jarFile);
+                }
+                cacheDir.setLastModified(System.currentTimeMillis());
+                evictExtractCache(cacheDir);
+                return jarFile;
+            });
+        }
+
         File jarFile = File.createTempFile("webserver", ".jar");
         jarFile.deleteOnExit();
+        extractWebServerJar(jarFile);
+        return jarFile;
+    }
 
-        transferAndClose(
-            () -> new URI("jar", entryPath(WEBSERVER_JAR), null).toURL().openStream(),
-            () -> new FileOutputStream(jarFile));
+    private void extractWebServerJar(final File jarFile) throws Exception {
+        try (JarFile warFile = new JarFile(archive)) {
+            final JarEntry entry = warFile.getJarEntry(WEBSERVER_JAR.substring(1));
+            if (entry == null) throw new FileNotFoundException(archive + "!" + WEBSERVER_JAR);
+            copyEntry(warFile, entry, jarFile);
+            profile.extracted(jarFile.length());
+        }
         debug("webserver.jar extracted to " + jarFile.getPath());
-        return jarFile;
     }
 
     private Properties getWebserverProperties(File webRoot) throws Exception {
@@ -151,9 +266,9 @@ public class WarMain extends JarMain {
         String port = getSystemProperty("warbler.port", getENV("PORT"));
         port = port == null ? "8080" : port;
         String host = getSystemProperty("warbler.host", "0.0.0.0");
-        String webserverConfig = getSystemProperty("warbler.webserver_config", getENV("WARBLER_WEBSERVER_CONFIG"));
+        final String userWebserverConfig = getSystemProperty("warbler.webserver_config", getENV("WARBLER_WEBSERVER_CONFIG"));
         String embeddedWebserverConfig = new URI("jar", entryPath(WEBSERVER_CONFIG), null).toURL().toString();
-        webserverConfig = webserverConfig == null ? embeddedWebserverConfig : webserverConfig;
+        String webserverConfig = userWebserverConfig == null ? embeddedWebserverConfig : userWebserverConfig;
         for ( Map.Entry<Object, Object> entry : props.entrySet() ) {
             String val = (String) entry.getValue();
             val = val.replace("{{warfile}}", archive).
@@ -164,6 +279,11 @@ public class WarMain extends JarMain {
             entry.setValue(val);
         }
 
+        // known to the launchers even if not used as server arguments
+        if (props.getProperty("host") == null) props.setProperty("host", host);
+        if (props.getProperty("port") == null) props.setProperty("port", port);
+        if (props.getProperty("config") == null && userWebserverConfig != null) props.setProperty("config", userWebserverConfig);
+
         if (props.getProperty("props") != null) {
             String[] propsToSet = props.getProperty("props").split(",");
             for ( String key : propsToSet ) {
@@ -175,21 +295,485 @@ public class WarMain extends JarMain {
     }
 
 
-    private void doLaunchWebServer(File jar, File webRoot) throws Exception {
-        URLClassLoader loader = new URLClassLoader(new URL[] {jar.toURI().toURL()});
+    private void doLaunchWebServer(URL jar, File webRoot) throws Exception {
+        final long time = System.nanoTime();
+        URLClassLoader loader = new URLClassLoader(new URL[] {jar});
+        profile.classPathURLs = 1;
         Thread.currentThread().setContextClassLoader(loader);
         Properties props = getWebserverProperties(webRoot);
-        String mainClass = props.getProperty("mainclass");
-        if (mainClass == null) {
-            throw new IllegalArgumentException("unknown webserver main class ("
-                                               + WEBSERVER_PROPERTIES
-                                               + " is missing 'mainclass' property)");
-        }
-        Class<?> klass = Class.forName(mainClass, true, loader);
-        Method main = klass.getDeclaredMethod("main", String[].class);
+        final WebServerLauncher server = newWebServerLauncher(loader, props);
+        configurePrewarm(props);
+        startHealthEndpoint();
         String[] newArgs = launchWebServerArguments(props);
         debug("invoking webserver with: " + Arrays.deepToString(newArgs));
-        main.invoke(null, new Object[] { newArgs });
+        server.start(loader, props, newArgs);
+        webServer = server;
+        closeables.add(this::stopWebServer); // stopped (drained) before the webroot is deleted
+        profile.phase("webserver", time);
+        signalReady(time);
+        server.join();
+    }
+
+    /**
+     * <tt>java -Dwarbler.prewarm=4 -jar my.war</tt> boots JRuby-Rack's pooled runtimes (jruby.min.runtimes)
+     * using 4 threads, while the web application starts: the server is only ready once they are booted.
+     * The settings are passed to the launcher as context parameters, context parameters of the web.xml
+     * (e.g. set by the runtimes feature) and JRuby-Rack system properties take precedence.
+     */
+    private void configurePrewarm(final Properties props) {
+        final String prewarm = getSystemProperty("warbler.prewarm");
+        if (prewarm == null || "false".equals(prewarm)) return;
+        int threads = Runtime.getRuntime().availableProcessors();
+        if (!"true".equals(prewarm)) {
+            try {
+                threads = Integer.parseInt(prewarm.trim());
+            } catch (NumberFormatException e) {
+                warn("invalid warbler.prewarm value: " + prewarm);
+            }
+        }
+        setContextParam(props, "jruby.runtime.init.threads", Integer.toString(threads));
+        setContextParam(props, "jruby.runtime.init.wait", "true");
+        debug("pre-warming runtimes using " + getSystemProperty("jruby.runtime.init.threads", Integer.toString(threads)) + " threads");
+    }
+
+    static final String CONTEXT_PARAM = "context_param.";
+
+    private static void setContextParam(final Properties props, final String name, final String value) {
+        if (getSystemProperty(name) == null && props.getProperty(CONTEXT_PARAM + name) == null) {
+            props.setProperty(CONTEXT_PARAM + name, value);
+        }
+    }
+
+    private volatile WebServerLauncher webServer;
+    private volatile boolean draining;
+    private volatile boolean readySignalled; // the ready file got written
+
+    /**
+     * @return whether the web server accepts requests (and is not shutting down)
+     */
+    boolean isReady() {
+        final WebServerLauncher server = webServer;
+        return server != null && !draining && server.isReady();
+    }
+
+    /**
+     * @return whether readiness got signalled (the ready file exists) and the server is still ready
+     */
+    boolean isReadySignalled() {
+        return readySignalled && isReady();
+    }
+
+    /**
+     * Once the server is ready, writes the <tt>warbler.ready_file</tt> (if set) and reports the
+     * time it took as the "ready" phase of the startup profile. The health endpoint reports ready
+     * only after the file got written, the two signals never disagree about a starting server.
+     */
+    private void signalReady(final long since) {
+        final String readyFile = getSystemProperty("warbler.ready_file");
+        final Thread thread = new Thread(() -> {
+            try {
+                while (!isReady()) {
+                    if (draining) return;
+                    Thread.sleep(100);
+                }
+                profile.phase("ready", since);
+                debug("webserver ready");
+                if (readyFile != null) {
+                    try {
+                        Files.write(new File(readyFile).toPath(), (archive + '\n').getBytes(StandardCharsets.UTF_8));
+                    } catch (IOException e) {
+                        warn("failed to write ready file " + readyFile + " (" + e + ")");
+                    }
+                }
+                readySignalled = true;
+                if (getSystemProperty("warbler.cds.training") != null) {
+                    debug("CDS training run done, stopping");
+                    System.exit(0); // the JVM dumps the archive (-XX:ArchiveClassesAtExit) on exit
+                }
+            } catch (Exception e) {
+                warn("failed to signal readiness (" + e + ")");
+            }
+        }, "Warbler-Ready");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * <tt>java -Dwarbler.drain.timeout=30 -jar my.war</tt>: seconds requests in flight are given to
+     * complete when the server is stopped (e.g. on SIGTERM), before the extracted files are deleted.
+     * Only the jetty launcher drains requests, see {@link WebServerLauncher#stop(long)}.
+     */
+    protected long drainTimeout() {
+        final String timeout = getSystemProperty("warbler.drain.timeout", "30");
+        try {
+            return Math.max(0, Long.parseLong(timeout.trim())) * 1000;
+        } catch (NumberFormatException e) {
+            warn("invalid warbler.drain.timeout value: " + timeout);
+            return 30000;
+        }
+    }
+
+    private void stopWebServer() throws IOException {
+        draining = true;
+        final String readyFile = getSystemProperty("warbler.ready_file");
+        if (readyFile != null) new File(readyFile).delete();
+
+        final long timeout = drainTimeout();
+        debug("stopping webserver (draining requests for up to " + timeout + "ms)");
+        try {
+            webServer.stop(timeout);
+        } catch (Exception e) {
+            throw new IOException("failed to stop webserver", e);
+        }
+    }
+
+    /**
+     * <tt>java -Dwarbler.health.port=8081 -jar my.war</tt> serves <tt>/live</tt> and <tt>/ready</tt>
+     * (200 once the server accepts requests, 503 while starting or draining) on the loopback interface
+     * (or <tt>warbler.health.host</tt>).
+     */
+    private void startHealthEndpoint() throws IOException {
+        final String port = getSystemProperty("warbler.health.port");
+        if (port == null || port.isEmpty()) return;
+        final String host = getSystemProperty("warbler.health.host", "127.0.0.1");
+        closeables.add(HealthEndpoint.start(new InetSocketAddress(host, Integer.parseInt(port.trim())), this::isReadySignalled));
+        debug("health endpoint listening on " + host + ':' + port);
+    }
+
+    static final class HealthEndpoint {
+
+        static Closeable start(final InetSocketAddress address, final BooleanSupplier ready) throws IOException {
+            final HttpServer server = HttpServer.create(address, 0);
+            server.createContext("/live", exchange -> respond(exchange, 200, "ok"));
+            server.createContext("/ready", exchange -> {
+                final boolean isReady = ready.getAsBoolean();
+                respond(exchange, isReady ? 200 : 503, isReady ? "ready" : "unavailable");
+            });
+            final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "Warbler-Health");
+                thread.setDaemon(true);
+                return thread;
+            });
+            server.setExecutor(executor);
+            server.start();
+            return () -> {
+                server.stop(0);
+                executor.shutdownNow();
+            };
+        }
+
+        private static void respond(final HttpExchange exchange, final int status, final String body) throws IOException {
+            final byte[] bytes = (body + '\n').getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            exchange.sendResponseHeaders(status, bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        }
+    }
+
+    private WebServerLauncher newWebServerLauncher(ClassLoader loader, Properties props) throws Exception {
+        final String launcher = getSystemProperty("warbler.webserver.launcher", props.getProperty("launcher", "main"));
+        debug("webserver launcher: " + launcher);
+        switch (launcher) {
+            case "main": return new MainClassLauncher();
+            case "jetty": return new JettyLauncher();
+        }
+        return (WebServerLauncher) Class.forName(launcher, true, loader).getDeclaredConstructor().newInstance();
+    }
+
+    /**
+     * Launches the embedded web server, loaded from the webserver.jar. The launcher is chosen by the
+     * <tt>launcher</tt> property of webserver.properties (or <tt>warbler.webserver.launcher</tt>):
+     * <tt>main</tt> (the default) invokes the <tt>mainclass</tt>, <tt>jetty</tt> embeds Jetty and any
+     * other value names a class (with a no-argument constructor) implementing this interface.
+     */
+    public interface WebServerLauncher {
+
+        /**
+         * Starts the server, returns once the server has been started.
+         * @param loader the class loader holding the webserver.jar
+         * @param props webserver.properties (with placeholders substituted), <tt>context_param.*</tt> entries are
+         *              context (init) parameters of the web application, those of its web.xml take precedence
+         * @param args the <tt>args</tt> of webserver.properties followed by the command line arguments
+         */
+        void start(ClassLoader loader, Properties props, String[] args) throws Exception;
+
+        /**
+         * @return whether the server accepts requests
+         */
+        boolean isReady();
+
+        /**
+         * Waits until the server stopped.
+         */
+        void join() throws Exception;
+
+        /**
+         * Stops the server (called on shutdown), requests in flight are given the time to complete
+         * where the launcher supports it (the jetty launcher does, the main launcher does not).
+         * @param drainTimeout the time (in milliseconds) to wait for requests in flight
+         */
+        void stop(long drainTimeout) throws Exception;
+    }
+
+    /**
+     * Runs the <tt>main</tt> method of the server's <tt>mainclass</tt> (e.g. Jetty's Runner), which
+     * does not return until the server stops, on a separate thread.
+     */
+    static final class MainClassLauncher implements WebServerLauncher {
+
+        private Thread thread;
+        private volatile Exception failure;
+        private InetSocketAddress address;
+        private volatile boolean accepting;
+
+        @Override
+        public void start(final ClassLoader loader, final Properties props, final String[] args) throws Exception {
+            String mainClass = props.getProperty("mainclass");
+            if (mainClass == null) {
+                throw new IllegalArgumentException("unknown webserver main class ("
+                                                   + WEBSERVER_PROPERTIES
+                                                   + " is missing 'mainclass' property)");
+            }
+            // the main class takes no context parameters, JRuby-Rack reads them as system properties as well
+            for (String name : props.stringPropertyNames()) {
+                if (name.startsWith(CONTEXT_PARAM) && getSystemProperty(name.substring(CONTEXT_PARAM.length())) == null) {
+                    setSystemProperty(name.substring(CONTEXT_PARAM.length()), props.getProperty(name));
+                }
+            }
+            Class<?> klass = Class.forName(mainClass, true, loader);
+            final Method main = klass.getDeclaredMethod("main", String[].class);
+            final String host = props.getProperty("host");
+            address = new InetSocketAddress(host == null || isAnyLocalAddress(host) ? InetAddress.getLoopbackAddress() :
+                InetAddress.getByName(host), Integer.parseInt(props.getProperty("port")));
+            thread = new Thread(() -> {
+                try {
+                    main.invoke(null, new Object[] { args });
+                } catch (InvocationTargetException e) {
+                    final Throwable target = e.getTargetException();
+                    failure = target instanceof Exception ? (Exception) target : e;
+                } catch (Exception e) {
+                    failure = e;
+                }
+            }, "Warbler-WebServer");
+            thread.setContextClassLoader(loader);
+            thread.start();
+        }
+
+        private static boolean isAnyLocalAddress(final String host) {
+            return "0.0.0.0".equals(host) || "::".equals(host) || host.isEmpty();
+        }
+
+        /**
+         * The main method does not tell, the server is ready once it accepts connections (Jetty only
+         * opens its connectors after the web application has been started). Connecting is only tried
+         * until it succeeded once, from then on the server is ready for as long as it runs.
+         */
+        @Override
+        public boolean isReady() {
+            if (!thread.isAlive()) return false;
+            if (accepting) return true;
+            try (Socket socket = new Socket()) {
+                socket.connect(address, 1000);
+                return accepting = true;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        @Override
+        public void join() throws Exception {
+            thread.join();
+            if (failure != null) throw failure;
+        }
+
+        /**
+         * The server's own shutdown hook (if any, jetty-runner stops at shutdown) stops it, waits for
+         * that to happen. Requests in flight are not drained, the launcher can not reach the server the
+         * main method creates: use the jetty launcher for that.
+         */
+        @Override
+        public void stop(final long drainTimeout) throws InterruptedException {
+            debug("requests in flight are not drained with the main launcher, use the jetty launcher");
+            thread.join(Math.max(drainTimeout, 1));
+        }
+    }
+
+    /**
+     * Embeds Jetty (9.4 or later, e.g. the jetty-runner webserver.jar or a Jetty 12 jar) serving the war,
+     * on the <tt>host</tt> and <tt>port</tt> of webserver.properties. The web application context class
+     * is the <tt>webapp.class</tt> property or the first one found (9.4 - 11, ee10, ee9 or ee8 for Jetty 12).
+     * Jetty's classes are used reflectively, the launcher does not depend on a specific version.
+     */
+    static final class JettyLauncher implements WebServerLauncher {
+
+        private static final String[] WEBAPP_CONTEXTS = {
+            "org.eclipse.jetty.webapp.WebAppContext",
+            "org.eclipse.jetty.ee10.webapp.WebAppContext",
+            "org.eclipse.jetty.ee9.webapp.WebAppContext",
+            "org.eclipse.jetty.ee8.webapp.WebAppContext"
+        };
+
+        private static final String[] GRACEFUL_HANDLERS = {
+            "org.eclipse.jetty.server.handler.GracefulHandler", // Jetty 12
+            "org.eclipse.jetty.server.handler.StatisticsHandler"
+        };
+
+        private Object server;
+
+        @Override
+        public void start(final ClassLoader loader, final Properties props, final String[] args) throws Exception {
+            final Object threadPool = loader.loadClass("org.eclipse.jetty.util.thread.QueuedThreadPool").getDeclaredConstructor().newInstance();
+            invoke(threadPool, "setName", String.class, "warbler-webserver");
+
+            final Class<?> serverClass = loader.loadClass("org.eclipse.jetty.server.Server");
+            server = serverClass.getConstructor(loader.loadClass("org.eclipse.jetty.util.thread.ThreadPool")).newInstance(threadPool);
+
+            final Object connector = loader.loadClass("org.eclipse.jetty.server.ServerConnector").getConstructor(serverClass).newInstance(server);
+            invoke(connector, "setHost", String.class, props.getProperty("host"));
+            invoke(connector, "setPort", int.class, Integer.parseInt(props.getProperty("port", "8080")));
+            invoke(server, "addConnector", loader.loadClass("org.eclipse.jetty.server.Connector"), connector);
+
+            final Object context = webAppContextClass(loader, props).getDeclaredConstructor().newInstance();
+            invoke(context, "setContextPath", String.class, props.getProperty("context_path", "/"));
+            invoke(context, "setWar", String.class, props.getProperty("war"));
+            for (String name : props.stringPropertyNames()) { // overridden by the context-params of web.xml
+                if (name.startsWith(CONTEXT_PARAM)) {
+                    invoke(context, "setInitParameter", new Class<?>[] { String.class, String.class },
+                           name.substring(CONTEXT_PARAM.length()), props.getProperty(name));
+                }
+            }
+            setHandler(loader, context);
+
+            final String config = props.getProperty("config");
+            if (config != null) configure(loader, config);
+            invoke(server, "start");
+        }
+
+        /**
+         * Applies the Jetty XML <tt>config</tt> (WEB-INF/webserver.xml or <tt>warbler.webserver_config</tt>)
+         * to the server, as jetty-runner's <tt>--config</tt> does.
+         */
+        private void configure(final ClassLoader loader, final String config) throws Exception {
+            final Class<?> xmlConfigurationClass;
+            try {
+                xmlConfigurationClass = loader.loadClass("org.eclipse.jetty.xml.XmlConfiguration");
+            } catch (ClassNotFoundException e) {
+                throw new IllegalStateException("webserver config " + config + " can not be applied, " +
+                                                "jetty-xml is missing from " + WEBSERVER_JAR, e);
+            }
+            URL url;
+            try {
+                url = new URL(config);
+            } catch (MalformedURLException e) {
+                url = new File(config).toURI().toURL();
+            }
+            Object xmlConfiguration;
+            try {
+                try {
+                    xmlConfiguration = xmlConfigurationClass.getConstructor(URL.class).newInstance(url); // Jetty 9.4
+                } catch (NoSuchMethodException e) {
+                    final Class<?> resourceClass = loader.loadClass("org.eclipse.jetty.util.resource.Resource");
+                    xmlConfiguration = xmlConfigurationClass.getConstructor(resourceClass).newInstance(newResource(loader, url));
+                }
+            } catch (InvocationTargetException e) {
+                throw new IOException("failed to read webserver config " + config, e.getTargetException());
+            }
+            invoke(xmlConfiguration, "configure", Object.class, server);
+        }
+
+        private static Object newResource(final ClassLoader loader, final URL url) throws Exception {
+            final Class<?> factoryClass;
+            try {
+                factoryClass = loader.loadClass("org.eclipse.jetty.util.resource.ResourceFactory"); // Jetty 12
+            } catch (ClassNotFoundException e) {
+                return loader.loadClass("org.eclipse.jetty.util.resource.Resource").getMethod("newResource", URL.class).invoke(null, url);
+            }
+            final Object factory = factoryClass.getMethod("root").invoke(null);
+            return factoryClass.getMethod("newResource", URI.class).invoke(factory, url.toURI());
+        }
+
+        private static Class<?> webAppContextClass(final ClassLoader loader, final Properties props) throws ClassNotFoundException {
+            final String name = props.getProperty("webapp.class");
+            if (name != null) return loader.loadClass(name);
+            for (String className : WEBAPP_CONTEXTS) {
+                try {
+                    return loader.loadClass(className);
+                } catch (ClassNotFoundException e) { /* try the next one */ }
+            }
+            throw new ClassNotFoundException("no Jetty WebAppContext found (tried " + Arrays.toString(WEBAPP_CONTEXTS) + ")");
+        }
+
+        private void setHandler(final ClassLoader loader, Object context) throws Exception {
+            final Class<?> handlerClass = loader.loadClass("org.eclipse.jetty.server.Handler");
+            if (!handlerClass.isInstance(context) && context instanceof Supplier) {
+                context = ((Supplier<?>) context).get(); // Jetty 12's ee8 and ee9 (nested) contexts
+            }
+            final Object graceful = newGracefulHandler(loader);
+            if (graceful != null) {
+                invoke(graceful, "setHandler", handlerClass, context);
+                context = graceful;
+            }
+            invoke(server, "setHandler", handlerClass, context);
+        }
+
+        /**
+         * @return a handler tracking requests in flight, so that stopping the server waits for them
+         */
+        private static Object newGracefulHandler(final ClassLoader loader) throws Exception {
+            for (String className : GRACEFUL_HANDLERS) {
+                try {
+                    return loader.loadClass(className).getDeclaredConstructor().newInstance();
+                } catch (ClassNotFoundException e) { /* try the next one */ }
+            }
+            return null;
+        }
+
+        @Override
+        public boolean isReady() {
+            try {
+                return server != null && (Boolean) invoke(server, "isStarted");
+            } catch (Exception e) {
+                return false;
+            }
+        }
+
+        @Override
+        public void join() throws Exception {
+            invoke(server, "join");
+        }
+
+        @Override
+        public void stop(final long drainTimeout) throws Exception {
+            if (server == null) return;
+            // connectors stop accepting right away, the graceful handler waits for requests in flight
+            try {
+                invoke(server, "setStopTimeout", long.class, drainTimeout);
+            } catch (NoSuchMethodException e) {
+                warn("no Server.setStopTimeout, requests in flight are not drained");
+            }
+            invoke(server, "stop");
+        }
+
+        private static Object invoke(final Object self, final String name) throws Exception {
+            return invoke(self, name, new Class<?>[0]);
+        }
+
+        private static Object invoke(final Object self, final String name, final Class<?> type, final Object arg) throws Exception {
+            return invoke(self, name, new Class<?>[] { type }, arg);
+        }
+
+        private static Object invoke(final Object self, final String name, final Class<?>[] signature, final Object... args)
+            throws Exception {
+            try {
+                return self.getClass().getMethod(name, signature).invoke(self, args);
+            } catch (InvocationTargetException e) {
+                final Throwable target = e.getTargetException();
+                if (target instanceof Exception) throw (Exception) target;
+                throw e;
+            }
+        }
     }
 
     private String[] launchWebServerArguments(Properties props) {
@@ -210,10 +794,27 @@ public class WarMain extends JarMain {
     // JarMain overrides to make WarMain "launchable"
     // e.g. java -jar rails.war -S rake db:migrate
 
+    /**
+     * <tt>java -Dwarbler.extract.selective=true -jar my.war -S rake db:migrate</tt> only extracts
+     * the application (and class-path jars), gems are loaded from <tt>uri:classloader:/WEB-INF/gems</tt>
+     * and public assets are not extracted at all.
+     */
+    protected boolean isExtractSelective() {
+        return Boolean.parseBoolean(getSystemProperty("warbler.extract.selective", "false"));
+    }
+
+    @Override
+    protected String extractLayout() {
+        return super.extractLayout() + (isExtractSelective() ? "selective" : "");
+    }
+
     @Override
     protected String getExtractEntryPath(final JarEntry entry) {
         final String name = entry.getName();
         final String res;
+        if ( isExtractSelective() && ( name.startsWith(WEB_INF_GEMS) || !name.startsWith(WEB_INF) && !name.startsWith(META_INF) ) ) {
+            return null; // gems are read through the class-loader, public assets are not needed
+        }
         if ( name.startsWith(WEB_INF) ) {
             // WEB-INF/app/controllers/application_controller.rb ->
             // app/controllers/application_controller.rb
@@ -230,19 +831,28 @@ public class WarMain extends JarMain {
     }
 
     @Override
-    protected URL extractEntry(final JarEntry entry, String path) throws Exception {
+    protected boolean isClassPathEntry(final String path) {
+        return path.endsWith(".jar") && path.startsWith("/lib/");
+    }
+
+    @Override
+    protected URL extractEntry(final JarFile jarFile, final JarEntry entry, String path) throws Exception {
         // always extract but only return class-path entry URLs :
-        final URL entryURL = super.extractEntry(entry, path);
-        return path.endsWith(".jar") && path.startsWith("/lib/") ? entryURL : null;
+        final URL entryURL = super.extractEntry(jarFile, entry, path);
+        return isClassPathEntry(path) ? entryURL : null;
     }
 
     @Override
     protected int launchJRuby(final URL[] jars) throws Exception {
+        long time = System.nanoTime();
         final Object scriptingContainer = newScriptingContainer(jars);
+        time = profile.phase("runtime", time);
 
         invokeMethod(scriptingContainer, "setArgv", (Object) executableArgv);
-        invokeMethod(scriptingContainer, "setCurrentDirectory", extractRoot.getAbsolutePath());
+        workingDirectory = workingDirectory();
+        invokeMethod(scriptingContainer, "setCurrentDirectory", workingDirectory.getAbsolutePath());
         initJRubyScriptingEnv(scriptingContainer);
+        time = profile.phase("init", time);
 
         final Object provider = invokeMethod(scriptingContainer, "getProvider");
         final Object rubyInstanceConfig = invokeMethod(provider, "getRubyInstanceConfig");
@@ -252,6 +862,7 @@ public class WarMain extends JarMain {
         final CharSequence execScriptEnvPre = executableScriptEnvPrefix();
 
         final String executablePath = locateExecutable(scriptingContainer, execScriptEnvPre);
+        time = profile.phase("locate", time);
         if ( executablePath == null ) {
             throw new IllegalStateException("failed to locate gem executable: '" + executable + "'");
         }
@@ -272,9 +883,59 @@ public class WarMain extends JarMain {
                 new Class[] { InputStream.class, String.class },
                 executableInput, executablePath
         );
+        profile.phase("run", time);
         return ( outcome instanceof Number ) ? ( (Number) outcome ).intValue() : 0;
     }
 
+    private File workingDirectory;
+
+    /**
+     * The working directory of executables, a cached (shared) extraction gets mirrored into a private
+     * directory so that the log/, tmp/ (pids) and db/ files written by one launcher never land in the
+     * tree other launchers share.
+     */
+    protected File workingDirectory() throws IOException {
+        if (!isExtractCached()) return extractRoot; // a private (temporary) extraction
+        final File workDir = File.createTempFile("jruby", "work");
+        workDir.delete();
+        workDir.mkdirs();
+        closeables.add(() -> deleteAll(workDir));
+
+        final File[] children = extractRoot.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                final File target = new File(workDir, child.getName());
+                if (WRITABLE_DIRS.contains(child.getName())) {
+                    copyAll(child, target);
+                    continue;
+                }
+                try {
+                    Files.createSymbolicLink(target.toPath(), child.toPath());
+                } catch (IOException | UnsupportedOperationException e) {
+                    debug("failed to link " + child.getPath() + " (" + e + "), copying it");
+                    copyAll(child, target);
+                }
+            }
+        }
+        debug("working directory is " + workDir.getPath());
+        return workDir;
+    }
+
+    private static final List<String> WRITABLE_DIRS = Arrays.asList("db", "log", "tmp");
+
+    private static void copyAll(final File source, final File target) throws IOException {
+        if (source.isDirectory()) {
+            target.mkdirs();
+            final File[] children = source.listFiles();
+            if (children != null) {
+                for (File child : children) copyAll(child, new File(target, child.getName()));
+            }
+        } else {
+            Files.copy(source.toPath(), target.toPath());
+            target.setWritable(true); // the cached tree is read-only
+        }
+    }
+
     protected String locateExecutable(final Object scriptingContainer, final CharSequence envPreScript)
         throws Exception {
         if ( executable == null ) {
@@ -291,8 +952,9 @@ public class WarMain extends JarMain {
     }
 
     protected CharSequence executableScriptEnvPrefix() {
-        final String gemsDir = new File(extractRoot, "gems").getAbsolutePath();
-        final String gemfile = new File(extractRoot, "Gemfile").getAbsolutePath();
+        final String gemsDir = isExtractSelective() ?
+            "uri:classloader:/WEB-INF/gems" : new File(extractRoot, "gems").getAbsolutePath();
+        final String gemfile = new File(workingDirectory, "Gemfile").getAbsolutePath();
         debug("setting GEM_HOME to " + gemsDir);
         debug("... and BUNDLE_GEMFILE to " + gemfile);
 
@@ -312,7 +974,8 @@ public class WarMain extends JarMain {
           "  else\n" +
           "    env = ENV['RAILS_ENV'] || ENV['RACK_ENV'] \n" + // init.rb sets ENV['RAILS_ENV'] ||= ...
           "    env ? Bundler.setup(:default, env) : Bundler.setup(:default) \n" +
-          "  end if ENV_JAVA['warbler.bundler.setup'] != 'false' \n" + // java -Dwarbler.bundler.setup=false -jar my.war -S pry
+          "  end if ENV_JAVA['warbler.bundler.setup'] != 'false' && \n" + // java -Dwarbler.bundler.setup=false -jar my.war -S pry
+          "    !defined?(Warbler::BUNDLER_LOAD_PATH) \n" + // bundle resolved when packaging (config.bundler_snapshot)
         "  exec = '"+ executable +"' \n" +
         "  spec = Gem::Specification.find { |s| s.executables.include?(exec) } \n" +
         "  spec ? spec.bin_file(exec) : nil \n" +
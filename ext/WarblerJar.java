@@ -5,23 +5,50 @@
  * See the file LICENSE.txt for details.
  */
 
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
-import java.util.zip.ZipOutputStream;
 
 import org.jruby.Ruby;
 import org.jruby.RubyArray;
 import org.jruby.RubyHash;
 import org.jruby.RubyModule;
+import org.jruby.RubyNumeric;
 import org.jruby.RubyString;
 import org.jruby.anno.JRubyMethod;
 import org.jruby.runtime.Block;
@@ -36,24 +63,43 @@ public class WarblerJar {
         task.defineAnnotatedMethods(WarblerJar.class);
     }
 
-    @JRubyMethod
-    public static IRubyObject create_jar(ThreadContext context, IRubyObject self,
-        IRubyObject jar_path, IRubyObject entries) {
+    @JRubyMethod(required = 2, optional = 1)
+    public static IRubyObject create_jar(ThreadContext context, IRubyObject self, IRubyObject[] args) {
         final Ruby runtime = context.runtime;
+        final IRubyObject jar_path = args[0], entries = args[1];
 
         if (!(entries instanceof RubyHash)) {
             throw runtime.newArgumentError("expected a hash for the second argument");
         }
+        final RubyHash options = args.length > 2 && !args[2].isNil() ? args[2].convertToHash() : RubyHash.newHash(runtime);
 
         RubyHash hash = (RubyHash) entries;
         try {
-            FileOutputStream file = newFile(jar_path);
+            final int level = compressionLevel(context, options);
+            IncrementalBuild incremental = null;
+            File index = null;
+            if (options.op_aref(context, runtime.newSymbol("incremental")).isTrue()) {
+                IRubyObject previous = options.op_aref(context, runtime.newSymbol("previous"));
+                IRubyObject indexPath = options.op_aref(context, runtime.newSymbol("index"));
+                index = indexPath.isNil() ? null : getFile(indexPath);
+                incremental = IncrementalBuild.open(previous.isNil() ? null : getFile(previous), index, level);
+            }
+
+            // reproducible archives get a fixed timestamp (seconds since the epoch)
+            IRubyObject timestamp = options.op_aref(context, runtime.newSymbol("timestamp"));
             try {
-                ZipOutputStream zip = new ZipOutputStream(file);
-                addEntries(context, zip, hash);
-                zip.finish();
+                WarblerJarWriter zip = timestamp.isNil() ? new WarblerJarWriter(getFile(jar_path)) :
+                    new WarblerJarWriter(getFile(jar_path), RubyNumeric.num2long(timestamp) * 1000, TimeZone.getTimeZone("UTC"));
+                try (OpenArchives archives = new OpenArchives()) { // e.g. app.jar!/entry values
+                    IRubyObject storedEntries = options.op_aref(context, runtime.newSymbol("stored_entries"));
+                    addEntries(context, zip, hash, level, storedEntries, incremental, archives);
+                    zip.finish();
+                } finally {
+                    close(zip);
+                }
+                if (index != null) incremental.writeIndex(index, getFile(jar_path), level);
             } finally {
-                close(file);
+                if (incremental != null) incremental.close(); // unmaps the previous archive (to be deleted)
             }
         } catch (IOException e) {
             if (runtime.isDebug()) {
@@ -69,8 +115,8 @@ public class WarblerJar {
     public static IRubyObject entry_in_jar(ThreadContext context, IRubyObject self,
         IRubyObject jar_path, IRubyObject entry) {
         final Ruby runtime = context.runtime;
-        try {
-            InputStream entryStream = getStream(jar_path.convertToString().getUnicodeValue(),
+        try (OpenArchives archives = new OpenArchives()) {
+            InputStream entryStream = getStream(archives, jar_path.convertToString().getUnicodeValue(),
                                                 entry.convertToString().getUnicodeValue());
             try {
                 byte[] buf = new byte[16384];
@@ -92,53 +138,157 @@ public class WarblerJar {
         }
     }
 
-    private static void addEntries(ThreadContext context, ZipOutputStream zip, RubyHash entries) throws IOException {
+    private static int compressionLevel(ThreadContext context, RubyHash options) {
+        IRubyObject level = options.op_aref(context, context.runtime.newSymbol("compression_level"));
+        if (level.isNil()) return Deflater.DEFAULT_COMPRESSION;
+        int value = RubyNumeric.num2int(level);
+        if (value < Deflater.NO_COMPRESSION || value > Deflater.BEST_COMPRESSION) {
+            throw context.runtime.newArgumentError("invalid compression level: " + value);
+        }
+        return value;
+    }
+
+    /**
+     * Entries are compressed in parallel (on the common fork-join pool) while the
+     * archive gets written in (sorted) order, at most a window of entries is pending.
+     * Entries matching the stored entries pattern (a Regexp) are not compressed,
+     * Warbler::Jar values are written as (stored) nested archives.
+     */
+    private static void addEntries(ThreadContext context, WarblerJarWriter zip, RubyHash entries,
+        int level, IRubyObject storedEntries, IncrementalBuild incremental, OpenArchives archives) throws IOException {
+        final ForkJoinPool pool = ForkJoinPool.commonPool();
+        final Deque<ForkJoinTask<WarblerJarWriter.Entry>> pending = new ArrayDeque<>();
+        final int window = Math.max(4, pool.getParallelism() * 4);
+        final RubyModule jarClass = context.runtime.getClassFromPath("Warbler::Jar");
+
         RubyArray keys = entries.keys().sort(context, Block.NULL_BLOCK);
-        for (int i = 0; i < keys.getLength(); i++) {
-            IRubyObject key = keys.entry(i);
-            IRubyObject value = entries.op_aref(context, key);
-            addEntry(context, zip, key.convertToString().getUnicodeValue(), value);
+        try {
+            for (int i = 0; i < keys.getLength(); i++) {
+                IRubyObject key = keys.entry(i);
+                IRubyObject value = entries.op_aref(context, key);
+                int entryLevel = level;
+                if (!storedEntries.isNil() && storedEntries.callMethod(context, "match?", key).isTrue()) {
+                    entryLevel = Deflater.NO_COMPRESSION;
+                }
+                String entryName = key.convertToString().getUnicodeValue();
+                if (jarClass.isInstance(value)) { // a nested jar, its entries are compressed at the archive's level
+                    pending.addLast(pool.submit(nestedEntry(context, entryName, value, level, storedEntries, incremental, archives)));
+                } else {
+                    pending.addLast(pool.submit(prepareEntry(context, entryName, value, entryLevel, incremental, archives)));
+                }
+                if (pending.size() >= window) {
+                    writeEntry(zip, pending.removeFirst());
+                }
+            }
+            while (!pending.isEmpty()) {
+                writeEntry(zip, pending.removeFirst());
+            }
+        } finally { // on failure, no task may still be reading the previous archive once it gets unmapped
+            for (ForkJoinTask<?> task : pending) task.cancel(false);
+            for (ForkJoinTask<?> task : pending) task.quietlyJoin();
         }
     }
 
-    private static void addEntry(ThreadContext context, ZipOutputStream zip, String entryName, IRubyObject value) throws IOException {
+    private static void writeEntry(WarblerJarWriter zip, ForkJoinTask<WarblerJarWriter.Entry> task) throws IOException {
+        final WarblerJarWriter.Entry entry;
+        try {
+            entry = task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new IOException(cause);
+        }
+        if (entry != null) zip.write(entry); // null when the file was not found
+    }
+
+    /**
+     * A (Warbler::Jar) value is written as a nested archive, straight into the archive's file
+     * (on the calling thread) instead of being created (and read back) from a separate file.
+     * An incremental build reuses entries of the nested archive within the previous archive.
+     */
+    private static Callable<WarblerJarWriter.Entry> nestedEntry(final ThreadContext context,
+        final String entryName, final IRubyObject jar, final int level, final IRubyObject storedEntries,
+        final IncrementalBuild incremental, final OpenArchives archives) {
+        final RubyHash entries = (RubyHash) jar.callMethod(context, "files");
+        return () -> WarblerJarWriter.Entry.nested(entryName, nested -> {
+            final IncrementalBuild nestedIncremental = incremental == null ? null : incremental.nested(entryName);
+            addEntries(context, nested, entries, level, storedEntries, nestedIncremental, archives);
+        });
+    }
+
+    // entries larger than this are streamed into the archive (in chunks) rather than read into memory
+    private static final long STREAM_THRESHOLD = 8 * 1024 * 1024;
+
+    /**
+     * Reads Ruby values on the calling thread, everything else (reading files and
+     * compressing their contents) happens in the returned task.
+     */
+    private static Callable<WarblerJarWriter.Entry> prepareEntry(final ThreadContext context,
+        final String entryName, final IRubyObject value, final int level, final IncrementalBuild incremental,
+        final OpenArchives archives) {
         if (value.respondsTo("read")) {
+            final long size = value.respondsTo("size") ? RubyNumeric.num2long(value.callMethod(context, "size")) : -1;
+            if (size < 0 || size > STREAM_THRESHOLD) { // read (on the calling thread) while writing
+                return () -> WarblerJarWriter.Entry.streamed(entryName, level, size, () -> new RubyIOInputStream(context, value));
+            }
             RubyString str = (RubyString) value.callMethod(context, "read").checkStringType();
-            ByteList strByteList = str.getByteList();
-            byte[] contents = strByteList.getUnsafeBytes();
-            zip.putNextEntry(new ZipEntry(entryName));
-            zip.write(contents, strByteList.getBegin(), strByteList.getRealSize());
-        } else {
-            File f;
-            if (value.isNil() || (f = getFile(value)).isDirectory()) {
-                zip.putNextEntry(new ZipEntry(entryName + "/"));
-            } else {
-                String path = f.getPath();
-                if (!f.exists()) {
-                    path = value.convertToString().getUnicodeValue();
-                }
+            final ByteList strByteList = str.getByteList();
+            final byte[] contents = strByteList.getUnsafeBytes();
+            return () -> compress(entryName, contents, strByteList.getBegin(), strByteList.getRealSize(), level, incremental);
+        }
 
-                try {
-                    InputStream inFile = getStream(path, null);
-                    try {
-                        zip.putNextEntry(new ZipEntry(entryName));
-                        byte[] buf = new byte[16384];
-                        int bytesRead;
-                        while ((bytesRead = inFile.read(buf)) != -1) {
-                            zip.write(buf, 0, bytesRead);
-                        }
-                    } finally {
-                        close(inFile);
-                    }
-                } catch (IOException e) {
-                    System.err.println("File not found; " + path + " not in archive");
-                }
+        final File f;
+        if (value.isNil() || (f = getFile(value)).isDirectory()) {
+            return () -> WarblerJarWriter.Entry.directory(entryName);
+        }
+
+        final String path = f.exists() ? f.getPath() : value.convertToString().getUnicodeValue();
+        return () -> {
+            if (incremental != null && f.isFile()) {
+                WarblerJarWriter.Entry entry = incremental.reuse(entryName, f, level);
+                if (entry != null) return entry;
+            }
+            if (f.isFile() && f.length() > STREAM_THRESHOLD) {
+                return WarblerJarWriter.Entry.streamed(entryName, level, f.length(), () -> new FileInputStream(f));
+            }
+
+            final byte[] contents;
+            try {
+                contents = readFully(getStream(archives, path, null));
+            } catch (IOException e) {
+                System.err.println("File not found; " + path + " not in archive");
+                return null;
             }
+            return compress(entryName, contents, 0, contents.length, level, incremental);
+        };
+    }
+
+    private static WarblerJarWriter.Entry compress(String entryName, byte[] contents, int off, int len,
+        int level, IncrementalBuild incremental) throws IOException {
+        final long crc = WarblerJarWriter.Entry.crc(contents, off, len);
+        if (incremental != null) {
+            WarblerJarWriter.Entry entry = incremental.reuse(entryName, crc, len, level);
+            if (entry != null) return entry;
         }
+        return WarblerJarWriter.Entry.compress(entryName, contents, off, len, level, crc);
     }
 
-    private static FileOutputStream newFile(IRubyObject jar_path) throws IOException {
-        return new FileOutputStream(getFile(jar_path));
+    private static byte[] readFully(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(in.available(), 8192));
+            byte[] buf = new byte[16384];
+            int bytesRead;
+            while ((bytesRead = in.read(buf)) != -1) {
+                out.write(buf, 0, bytesRead);
+            }
+            return out.toByteArray();
+        } finally {
+            close(in);
+        }
     }
 
     private static File getFile(IRubyObject path) {
@@ -153,9 +303,39 @@ public class WarblerJar {
         }
     }
 
+    /**
+     * Reads a Ruby IO (like) object, e.g. a StringIO, in chunks through its read(length) method.
+     */
+    private static final class RubyIOInputStream extends InputStream {
+        private final ThreadContext context;
+        private final IRubyObject io;
+
+        RubyIOInputStream(ThreadContext context, IRubyObject io) {
+            this.context = context;
+            this.io = io;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            final IRubyObject chunk = io.callMethod(context, "read", context.runtime.newFixnum(len));
+            if (chunk.isNil()) return -1;
+            final ByteList bytes = chunk.convertToString().getByteList();
+            final int read = Math.min(bytes.getRealSize(), len);
+            System.arraycopy(bytes.getUnsafeBytes(), bytes.getBegin(), b, off, read);
+            return read == 0 ? -1 : read;
+        }
+    }
+
     private static final Pattern PROTOCOL = Pattern.compile("^[a-z][a-z0-9]+:");
 
-    private static InputStream getStream(String jar, String entry) throws IOException {
+    private static InputStream getStream(OpenArchives archives, String jar, String entry) throws IOException {
         Matcher m = PROTOCOL.matcher(jar);
         while (m.find()) {
             jar = jar.substring(m.end());
@@ -163,16 +343,14 @@ public class WarblerJar {
         }
 
         String[] path = jar.split("!/");
-        InputStream stream = new FileInputStream(path[0]);
-        for (int i = 1; i < path.length; i++) {
-            stream = entryInJar(stream, path[i]);
+        if (entry != null) {
+            path = Arrays.copyOf(path, path.length + 1);
+            path[path.length - 1] = entry;
         }
-
-        if (entry == null) {
-            return stream;
+        if (path.length == 1) {
+            return new FileInputStream(path[0]);
         }
-
-        return entryInJar(stream, entry);
+        return archives.getInputStream(new File(path[0]), Arrays.copyOfRange(path, 1, path.length));
     }
 
     private static String trimTrailingSlashes(String path) {
@@ -183,6 +361,7 @@ public class WarblerJar {
         }
     }
 
+    // linear scan, only used for nested archives too large to be read into memory
     private static InputStream entryInJar(InputStream jar, String entry) throws IOException {
         entry = trimTrailingSlashes(entry);
 
@@ -196,4 +375,275 @@ public class WarblerJar {
         }
         throw new FileNotFoundException("entry '" + entry + "' not found in " + jar);
     }
+
+    /**
+     * The archives read by one create_jar (or entry_in_jar) call, e.g. the Warbler jar the launcher
+     * classes are copied from, kept open for the following lookups and closed at the end of the call:
+     * entries are located through the central directory, archives nested within one
+     * (<tt>app.war!/WEB-INF/lib/some.jar!/entry</tt>) are read into memory once unless they are
+     * larger than MAX_NESTED (the file is not mapped, it is not ours), larger ones are scanned.
+     */
+    static final class OpenArchives implements Closeable {
+        // nested archives larger than this are scanned (streamed) instead of being read into memory
+        private static final long MAX_NESTED = 64 * 1024 * 1024;
+
+        private final Map<File, ZipFile> archives = new HashMap<>();
+        private final Map<String, JarMain.ZipDirectory> nested = new HashMap<>();
+
+        /**
+         * @param path the entry, preceded by the nested archive(s) it is in
+         * @return the entry's stream, to be read before the archives get closed
+         */
+        synchronized InputStream getInputStream(File file, String... path) throws IOException {
+            final ZipFile zip = open(file);
+            final ZipEntry entry = getEntry(zip, file, path[0]);
+            if (path.length == 1) {
+                return zip.getInputStream(entry);
+            }
+            if (entry.getSize() < 0 || entry.getSize() > MAX_NESTED) { // too large to be read into memory
+                InputStream stream = zip.getInputStream(entry);
+                for (int i = 1; i < path.length; i++) {
+                    stream = entryInJar(stream, path[i]);
+                }
+                return stream;
+            }
+
+            JarMain.ZipDirectory jar = null;
+            String nestedPath = file.getPath();
+            for (int i = 0; i < path.length - 1; i++) {
+                nestedPath = nestedPath + "!/" + path[i];
+                JarMain.ZipDirectory nestedJar = nested.get(nestedPath);
+                if (nestedJar == null) {
+                    if (jar == null) {
+                        nestedJar = readNested(zip, entry);
+                    } else {
+                        final JarMain.ZipDirectory.Entry nestedEntry = getEntry(file, jar, path[i]);
+                        if (nestedEntry.method != ZipEntry.STORED && (nestedEntry.size < 0 || nestedEntry.size > MAX_NESTED)) {
+                            InputStream stream = jar.getInputStream(nestedEntry);
+                            for (int j = i + 1; j < path.length; j++) {
+                                stream = entryInJar(stream, path[j]);
+                            }
+                            return stream;
+                        }
+                        nestedJar = openNested(jar, nestedEntry);
+                    }
+                    nested.put(nestedPath, nestedJar);
+                }
+                jar = nestedJar;
+            }
+            return jar.getInputStream(getEntry(file, jar, path[path.length - 1]));
+        }
+
+        private ZipFile open(File file) throws IOException {
+            file = file.getAbsoluteFile();
+            ZipFile zip = archives.get(file);
+            if (zip == null) {
+                zip = new ZipFile(file);
+                archives.put(file, zip);
+            }
+            return zip;
+        }
+
+        private static ZipEntry getEntry(ZipFile zip, File file, String name) throws FileNotFoundException {
+            ZipEntry entry = zip.getEntry(name); // also looks up name + "/"
+            if (entry == null) entry = zip.getEntry(trimTrailingSlashes(name));
+            if (entry == null) throw new FileNotFoundException("entry '" + name + "' not found in " + file);
+            return entry;
+        }
+
+        private static JarMain.ZipDirectory.Entry getEntry(File file, JarMain.ZipDirectory jar, String name)
+            throws FileNotFoundException {
+            name = trimTrailingSlashes(name);
+            JarMain.ZipDirectory.Entry entry = jar.getEntry(name);
+            if (entry == null) entry = jar.getEntry(name + "/");
+            if (entry == null) throw new FileNotFoundException("entry '" + name + "' not found in " + file);
+            return entry;
+        }
+
+        private static JarMain.ZipDirectory readNested(ZipFile zip, ZipEntry entry) throws IOException {
+            return new JarMain.ZipDirectory(ByteBuffer.wrap(readFully(zip.getInputStream(entry))));
+        }
+
+        private static JarMain.ZipDirectory openNested(JarMain.ZipDirectory jar, JarMain.ZipDirectory.Entry entry)
+            throws IOException {
+            if (entry.method == ZipEntry.STORED) {
+                return new JarMain.ZipDirectory(jar.getData(entry));
+            }
+            return new JarMain.ZipDirectory(ByteBuffer.wrap(readFully(jar.getInputStream(entry))));
+        }
+
+        @Override
+        public synchronized void close() {
+            for (ZipFile zip : archives.values()) WarblerJar.close(zip);
+            archives.clear();
+            nested.clear();
+        }
+    }
+
+    /**
+     * Releases a mapped buffer right away (the buffer must not be accessed afterwards),
+     * on failure it is released once garbage collected.
+     */
+    static void unmap(final MappedByteBuffer buffer) {
+        try {
+            try { // Java 9+
+                final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                final Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+                final Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                invokeCleaner.invoke(theUnsafe.get(null), buffer);
+            } catch (NoSuchMethodException e) { // Java 8
+                final Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                final Object cleaner = cleanerMethod.invoke(buffer);
+                if (cleaner != null) cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // left to the garbage collector
+        }
+    }
+
+    /**
+     * State of an incremental build: entries of the previously built archive are copied (still
+     * compressed) into the new one when their source file did not change (same size and
+     * modification time as recorded in the index of the previous build) or when the entry's
+     * contents are the same (CRC and size) as before, only changed entries get compressed.
+     * The index is kept in a file next to the archive (not shipped within it), entries of nested
+     * archives (e.g. the gems jar) are recorded as <tt>nested.jar!/entry</tt>.
+     */
+    static final class IncrementalBuild implements Closeable {
+
+        private final JarMain.ZipDirectory previous;
+        private final Map<String, String> previousStamps;
+        private final Map<String, String> stamps; // shared with the nested builds
+        private final String prefix; // of the (nested) archive's entries in the index
+        private final MappedByteBuffer mapping; // owned by the outermost build, null for nested ones
+
+        private IncrementalBuild(JarMain.ZipDirectory previous, Map<String, String> previousStamps,
+            Map<String, String> stamps, String prefix, MappedByteBuffer mapping) {
+            this.previous = previous;
+            this.previousStamps = previousStamps;
+            this.stamps = stamps;
+            this.prefix = prefix;
+            this.mapping = mapping;
+        }
+
+        private static IncrementalBuild empty(MappedByteBuffer mapping) {
+            return new IncrementalBuild(null, Collections.<String, String>emptyMap(),
+                                        new ConcurrentHashMap<String, String>(), "", mapping);
+        }
+
+        /**
+         * @param previousArchive the archive from the previous build (if any)
+         * @param index the index of the previous build's source file stamps (if any)
+         * @param level compression level, entries compressed at another level are not reused
+         */
+        static IncrementalBuild open(File previousArchive, File index, int level) {
+            if (previousArchive == null || !previousArchive.isFile()) return empty(null);
+
+            MappedByteBuffer mapping = null;
+            try (FileChannel channel = FileChannel.open(previousArchive.toPath(), StandardOpenOption.READ)) {
+                if (channel.size() > Integer.MAX_VALUE) {
+                    throw new IOException(previousArchive + " is too large to be mapped");
+                }
+                mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                return new IncrementalBuild(new JarMain.ZipDirectory(mapping), readIndex(index, previousArchive, level),
+                                            new ConcurrentHashMap<String, String>(), "", mapping);
+            } catch (IOException e) {
+                System.err.println("Could not reuse " + previousArchive + " (" + e + "), rebuilding all entries");
+                return empty(mapping);
+            }
+        }
+
+        /**
+         * @return the recorded stamps, none unless the index was written for the previous archive
+         * (at the same compression level)
+         */
+        private static Map<String, String> readIndex(File index, File previousArchive, int level) throws IOException {
+            if (index == null || !index.isFile()) return Collections.emptyMap();
+
+            Map<String, String> stamps = new HashMap<>();
+            try (BufferedReader reader = Files.newBufferedReader(index.toPath(), StandardCharsets.UTF_8)) {
+                if (!indexHeader(level, previousArchive).equals(reader.readLine())) return Collections.emptyMap();
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    int tab = line.lastIndexOf('\t');
+                    if (tab > 0) stamps.put(line.substring(0, tab), line.substring(tab + 1));
+                }
+            }
+            return stamps;
+        }
+
+        /**
+         * @return the build of a nested archive, reusing entries of the (stored) nested archive
+         * with the same name within the previous archive
+         */
+        IncrementalBuild nested(String name) {
+            final JarMain.ZipDirectory.Entry entry = previous == null ? null : previous.getEntry(name);
+            JarMain.ZipDirectory nestedPrevious = null;
+            if (entry != null && entry.method == ZipEntry.STORED) {
+                try {
+                    nestedPrevious = new JarMain.ZipDirectory(previous.getData(entry));
+                } catch (IOException e) {
+                    // not an archive (any more), all of its entries get compressed
+                }
+            }
+            return new IncrementalBuild(nestedPrevious, previousStamps, stamps, prefix + name + "!/", null);
+        }
+
+        /**
+         * Unmaps the previous archive, entries reused from it must have been written.
+         * Otherwise the file could not be deleted (on Windows) until the mapping gets garbage collected.
+         */
+        @Override
+        public void close() {
+            if (mapping != null) unmap(mapping);
+        }
+
+        private static String indexHeader(int level, File archive) {
+            return "# warbler entries (compression level " + level + ") of an archive of " +
+                archive.length() + " bytes modified at " + archive.lastModified();
+        }
+
+        private static String stamp(File file) {
+            return file.length() + " " + file.lastModified();
+        }
+
+        /**
+         * Reuse the previous entry when the file's size and modification time did not change.
+         */
+        WarblerJarWriter.Entry reuse(String name, File file, int level) throws IOException {
+            final String stamp = stamp(file);
+            stamps.put(prefix + name, stamp);
+            if (previous == null || !stamp.equals(previousStamps.get(prefix + name))) return null;
+
+            final JarMain.ZipDirectory.Entry entry = previous.getEntry(name);
+            if (entry == null || entry.method != WarblerJarWriter.Entry.method(level)) return null;
+            return new WarblerJarWriter.Entry(name, entry.method, entry.crc, entry.size, previous.getData(entry));
+        }
+
+        /**
+         * Reuse the previous entry (not having to compress again) when the contents did not change.
+         */
+        WarblerJarWriter.Entry reuse(String name, long crc, long size, int level) throws IOException {
+            if (previous == null) return null;
+
+            final JarMain.ZipDirectory.Entry entry = previous.getEntry(name);
+            if (entry == null || entry.crc != crc || entry.size != size) return null;
+            if (entry.method != WarblerJarWriter.Entry.method(level)) return null;
+            return new WarblerJarWriter.Entry(name, entry.method, entry.crc, entry.size, previous.getData(entry));
+        }
+
+        /**
+         * Writes the index (of source file stamps) for the next build of the (written) archive.
+         */
+        void writeIndex(File index, File archive, int level) throws IOException {
+            final List<String> lines = new ArrayList<>(stamps.size() + 1);
+            lines.add(indexHeader(level, archive));
+            for (Map.Entry<String, String> entry : new TreeMap<>(stamps).entrySet()) {
+                lines.add(entry.getKey() + '\t' + entry.getValue());
+            }
+            Files.write(index.toPath(), lines, StandardCharsets.UTF_8);
+        }
+    }
 }
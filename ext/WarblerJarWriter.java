@@ -0,0 +1,466 @@
+/**
+ * Copyright (c) 2010-2012 Engine Yard, Inc.
+ * Copyright (c) 2007-2009 Sun Microsystems, Inc.
+ * This source code is available under the MIT license.
+ * See the file LICENSE.txt for details.
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+/**
+ * Writes jar (zip) archives out of entries which have been compressed up-front.
+ * Unlike with a ZipOutputStream the (expensive) compression does not need to
+ * happen while writing, entries might be deflated concurrently and written in order.
+ * All entries share the same time and no (platform specific) file attributes are
+ * written, given the same entries the produced archive is the same.
+ * Large entries are streamed (and compressed) in chunks instead, see {@link Entry#streamed},
+ * and nested archives are written in place, see {@link Entry#nested}.
+ */
+public class WarblerJarWriter implements Closeable {
+
+    /**
+     * An archive entry with its data already compressed (or stored), or a (large) entry
+     * which gets compressed while its data is streamed into the archive.
+     */
+    static final class Entry {
+        final String name;
+        final int method;
+        final long crc;
+        final long size;
+        final ByteBuffer data;
+        final int level;
+        final Callable<InputStream> input;
+        final Nested nested;
+
+        Entry(String name, int method, long crc, long size, ByteBuffer data) {
+            this.name = name;
+            this.method = method;
+            this.crc = crc;
+            this.size = size;
+            this.data = data;
+            this.level = Deflater.NO_COMPRESSION;
+            this.input = null;
+            this.nested = null;
+        }
+
+        private Entry(String name, int level, long size, Callable<InputStream> input) {
+            this.name = name;
+            this.method = method(level);
+            this.crc = 0;
+            this.size = size;
+            this.data = null;
+            this.level = level;
+            this.input = input;
+            this.nested = null;
+        }
+
+        private Entry(String name, Nested nested) {
+            this.name = name;
+            this.method = ZipEntry.STORED;
+            this.crc = 0;
+            this.size = -1;
+            this.data = null;
+            this.level = Deflater.NO_COMPRESSION;
+            this.input = null;
+            this.nested = nested;
+        }
+
+        /**
+         * An entry read (and compressed) in chunks while being written, its input is opened
+         * (and closed) on the thread writing the archive.
+         * @param size the expected size or -1 if not known
+         */
+        static Entry streamed(final String name, final int level, final long size, final Callable<InputStream> input) {
+            return new Entry(name, level, size, input);
+        }
+
+        /**
+         * A (stored) entry holding an archive which gets written in place, as the entry's data,
+         * on the thread writing the (outer) archive.
+         */
+        static Entry nested(final String name, final Nested nested) {
+            return new Entry(name, nested);
+        }
+
+        long getCompressedSize() {
+            return data.remaining();
+        }
+
+        static Entry directory(final String name) {
+            return new Entry(name.endsWith("/") ? name : name + '/', ZipEntry.STORED, 0, 0, ByteBuffer.allocate(0));
+        }
+
+        /**
+         * Compresses the given bytes, a level of 0 (Deflater.NO_COMPRESSION) stores them as they are.
+         */
+        static Entry compress(final String name, final byte[] bytes, final int off, final int len, final int level) {
+            return compress(name, bytes, off, len, level, crc(bytes, off, len));
+        }
+
+        static Entry compress(final String name, final byte[] bytes, final int off, final int len, final int level, final long crc) {
+            if (level == Deflater.NO_COMPRESSION) {
+                return new Entry(name, ZipEntry.STORED, crc, len, ByteBuffer.wrap(bytes, off, len));
+            }
+
+            final Deflater deflater = new Deflater(level, true);
+            try {
+                deflater.setInput(bytes, off, len);
+                deflater.finish();
+                final ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, len / 2));
+                final byte[] buf = new byte[16384];
+                while (!deflater.finished()) {
+                    out.write(buf, 0, deflater.deflate(buf));
+                }
+                return new Entry(name, ZipEntry.DEFLATED, crc, len, ByteBuffer.wrap(out.toByteArray()));
+            } finally {
+                deflater.end();
+            }
+        }
+
+        static long crc(final byte[] bytes, final int off, final int len) {
+            final CRC32 crc = new CRC32();
+            crc.update(bytes, off, len);
+            return crc.getValue();
+        }
+
+        /**
+         * @return the compression method entries are written with at the given level
+         */
+        static int method(final int level) {
+            return level == Deflater.NO_COMPRESSION ? ZipEntry.STORED : ZipEntry.DEFLATED;
+        }
+    }
+
+    /**
+     * The entries of a nested archive, see {@link Entry#nested}.
+     */
+    interface Nested {
+        /**
+         * Writes the entries (but does not finish nor close the writer).
+         */
+        void writeTo(WarblerJarWriter writer) throws IOException;
+    }
+
+    private static final class Header {
+        final byte[] name;
+        final int method;
+        final long crc;
+        final long compressedSize;
+        final long size;
+        final long offset;
+
+        Header(byte[] name, int method, long crc, long compressedSize, long size, long offset) {
+            this.name = name;
+            this.method = method;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.offset = offset;
+        }
+
+        boolean isZip64() {
+            return compressedSize >= ZIP64_MAGIC || size >= ZIP64_MAGIC || offset >= ZIP64_MAGIC;
+        }
+    }
+
+    private static final int LOCAL_HEADER = 0x04034b50;
+    private static final int CENTRAL_HEADER = 0x02014b50;
+    private static final int END_HEADER = 0x06054b50;
+    private static final int ZIP64_END_HEADER = 0x06064b50;
+    private static final int ZIP64_LOCATOR = 0x07064b50;
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+    private static final int UTF8_FLAG = 0x800;
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(65536).order(ByteOrder.LITTLE_ENDIAN);
+    private final List<Header> headers = new ArrayList<>();
+    private final int time;
+    private final long base; // where the archive starts in the file (for a nested one)
+    private long position;
+
+    WarblerJarWriter(final File file) throws IOException {
+        this(file, System.currentTimeMillis(), TimeZone.getDefault());
+    }
+
+    /**
+     * @param time the (modification) time of all entries
+     * @param zone the time zone (MS-DOS) entry times are expressed in
+     */
+    WarblerJarWriter(final File file, final long time, final TimeZone zone) throws IOException {
+        this.channel = FileChannel.open(file.toPath(),
+            StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+            StandardOpenOption.WRITE, StandardOpenOption.READ);
+        this.time = dosTime(time, zone);
+        this.base = 0;
+    }
+
+    private WarblerJarWriter(final FileChannel channel, final long base, final int time) {
+        this.channel = channel;
+        this.time = time;
+        this.base = base;
+    }
+
+    void write(final Entry entry) throws IOException {
+        if (entry.nested != null) {
+            writeNested(entry);
+            return;
+        }
+        if (entry.input != null) {
+            writeStreamed(entry);
+            return;
+        }
+        final byte[] name = entry.name.getBytes(StandardCharsets.UTF_8);
+        final Header header = new Header(name, entry.method, entry.crc, entry.getCompressedSize(), entry.size, position);
+        final boolean zip64 = header.compressedSize >= ZIP64_MAGIC || header.size >= ZIP64_MAGIC;
+
+        writeLocalHeader(name, entry.method, entry.crc, header.compressedSize, header.size, zip64);
+        write(entry.data.duplicate());
+        headers.add(header);
+    }
+
+    private void writeLocalHeader(final byte[] name, final int method, final long crc,
+        final long compressedSize, final long size, final boolean zip64) throws IOException {
+        ensureCapacity(30 + name.length + 20);
+        buffer.putInt(LOCAL_HEADER);
+        buffer.putShort((short) (zip64 ? 45 : 20));
+        buffer.putShort((short) UTF8_FLAG);
+        buffer.putShort((short) method);
+        buffer.putInt(time);
+        buffer.putInt((int) crc);
+        buffer.putInt((int) (zip64 ? ZIP64_MAGIC : compressedSize));
+        buffer.putInt((int) (zip64 ? ZIP64_MAGIC : size));
+        buffer.putShort((short) name.length);
+        buffer.putShort((short) (zip64 ? 20 : 0));
+        buffer.put(name);
+        if (zip64) {
+            buffer.putShort((short) 0x0001).putShort((short) 16);
+            buffer.putLong(size).putLong(compressedSize);
+        }
+        position += 30 + name.length + (zip64 ? 20 : 0);
+    }
+
+    /**
+     * Writes the crc and sizes, only known once the entry's data has been written, into its local header.
+     */
+    private void patchLocalHeader(final long offset, final byte[] name, final int method, final boolean zip64,
+        final long crc, final long compressedSize, final long size) throws IOException {
+        if (!zip64 && (size >= ZIP64_MAGIC || compressedSize >= ZIP64_MAGIC)) {
+            throw new IOException(new String(name, StandardCharsets.UTF_8) + " grew beyond its expected size");
+        }
+        flush();
+        final ByteBuffer patch = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+        patch.putInt((int) crc);
+        if (!zip64) patch.putInt((int) compressedSize).putInt((int) size);
+        patch.flip();
+        while (patch.hasRemaining()) channel.write(patch, base + offset + 14 + patch.position());
+        if (zip64) {
+            patch.clear();
+            patch.putLong(size).putLong(compressedSize).flip();
+            while (patch.hasRemaining()) channel.write(patch, base + offset + 30 + name.length + 4 + patch.position());
+        }
+        headers.add(new Header(name, method, crc, compressedSize, size, offset));
+    }
+
+    /**
+     * Writes the local header with a zero crc and sizes, streams the data in chunks (deflating it)
+     * and then patches the crc and actual sizes into the header. Entries of unknown size (or which
+     * might get close to 4GB) always get a zip64 local header, as its size can not grow afterwards.
+     */
+    private void writeStreamed(final Entry entry) throws IOException {
+        final byte[] name = entry.name.getBytes(StandardCharsets.UTF_8);
+        final boolean zip64 = isZip64(entry.size);
+        final long offset = position;
+        writeLocalHeader(name, entry.method, 0, 0, 0, zip64);
+
+        final long dataOffset = position;
+        final CRC32 crc = new CRC32();
+        long size = 0;
+        final Deflater deflater = entry.method == ZipEntry.DEFLATED ? new Deflater(entry.level, true) : null;
+        try (InputStream input = openInput(entry)) {
+            final byte[] in = new byte[65536];
+            final byte[] out = deflater == null ? null : new byte[65536];
+            int read;
+            while ((read = input.read(in)) != -1) {
+                crc.update(in, 0, read);
+                size += read;
+                if (deflater == null) {
+                    write(ByteBuffer.wrap(in, 0, read));
+                    continue;
+                }
+                deflater.setInput(in, 0, read);
+                while (!deflater.needsInput()) {
+                    write(ByteBuffer.wrap(out, 0, deflater.deflate(out)));
+                }
+            }
+            if (deflater != null) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    write(ByteBuffer.wrap(out, 0, deflater.deflate(out)));
+                }
+            }
+        } finally {
+            if (deflater != null) deflater.end();
+        }
+        patchLocalHeader(offset, name, entry.method, zip64, crc.getValue(), position - dataOffset, size);
+    }
+
+    /**
+     * Writes a (stored) entry holding an archive, which gets written in place: straight into this
+     * archive's file. Its crc is computed reading the written data back, the nested archive can not
+     * be checksummed while written as its local headers get patched.
+     */
+    private void writeNested(final Entry entry) throws IOException {
+        final byte[] name = entry.name.getBytes(StandardCharsets.UTF_8);
+        final long offset = position;
+        writeLocalHeader(name, ZipEntry.STORED, 0, 0, 0, true);
+        flush();
+
+        final WarblerJarWriter nested = new WarblerJarWriter(channel, base + position, time);
+        entry.nested.writeTo(nested);
+        nested.finish();
+        final long size = nested.position;
+
+        final CRC32 crc = new CRC32();
+        final ByteBuffer data = ByteBuffer.allocate(65536);
+        for (long read = 0; read < size; ) {
+            data.clear().limit((int) Math.min(data.capacity(), size - read));
+            final int n = channel.read(data, base + position + read);
+            if (n < 0) throw new IOException("unexpected end of " + entry.name);
+            crc.update(data.array(), 0, n);
+            read += n;
+        }
+        position += size;
+        channel.position(base + position);
+        patchLocalHeader(offset, name, ZipEntry.STORED, true, crc.getValue(), size, size);
+    }
+
+    private static boolean isZip64(final long size) {
+        return size < 0 || size >= ZIP64_MAGIC - (ZIP64_MAGIC >> 4); // deflated data might be (a bit) larger
+    }
+
+    private static InputStream openInput(final Entry entry) throws IOException {
+        try {
+            return entry.input.call();
+        } catch (IOException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Writes the central directory, no entries might be written afterwards.
+     */
+    void finish() throws IOException {
+        final long directoryOffset = position;
+        for (Header header : headers) {
+            final boolean zip64 = header.isZip64();
+            int extraLength = 0;
+            if (zip64) {
+                extraLength = 4;
+                if (header.size >= ZIP64_MAGIC) extraLength += 8;
+                if (header.compressedSize >= ZIP64_MAGIC) extraLength += 8;
+                if (header.offset >= ZIP64_MAGIC) extraLength += 8;
+            }
+
+            ensureCapacity(46 + header.name.length + extraLength);
+            buffer.putInt(CENTRAL_HEADER);
+            buffer.putShort((short) (zip64 ? 45 : 20)); // made by
+            buffer.putShort((short) (zip64 ? 45 : 20)); // needed to extract
+            buffer.putShort((short) UTF8_FLAG);
+            buffer.putShort((short) header.method);
+            buffer.putInt(time);
+            buffer.putInt((int) header.crc);
+            buffer.putInt((int) Math.min(header.compressedSize, ZIP64_MAGIC));
+            buffer.putInt((int) Math.min(header.size, ZIP64_MAGIC));
+            buffer.putShort((short) header.name.length);
+            buffer.putShort((short) extraLength);
+            buffer.putShort((short) 0); // comment length
+            buffer.putShort((short) 0); // disk number
+            buffer.putShort((short) 0); // internal attributes
+            buffer.putInt(0); // external attributes
+            buffer.putInt((int) Math.min(header.offset, ZIP64_MAGIC));
+            buffer.put(header.name);
+            if (zip64) {
+                buffer.putShort((short) 0x0001).putShort((short) (extraLength - 4));
+                if (header.size >= ZIP64_MAGIC) buffer.putLong(header.size);
+                if (header.compressedSize >= ZIP64_MAGIC) buffer.putLong(header.compressedSize);
+                if (header.offset >= ZIP64_MAGIC) buffer.putLong(header.offset);
+            }
+            position += 46 + header.name.length + extraLength;
+        }
+
+        final long directorySize = position - directoryOffset;
+        final int count = headers.size();
+        ensureCapacity(56 + 20 + 22);
+        if (count >= 0xFFFF || directoryOffset >= ZIP64_MAGIC || directorySize >= ZIP64_MAGIC) {
+            final long zip64End = position;
+            buffer.putInt(ZIP64_END_HEADER).putLong(44);
+            buffer.putShort((short) 45).putShort((short) 45);
+            buffer.putInt(0).putInt(0); // disk numbers
+            buffer.putLong(count).putLong(count);
+            buffer.putLong(directorySize).putLong(directoryOffset);
+            buffer.putInt(ZIP64_LOCATOR).putInt(0).putLong(zip64End).putInt(1);
+            position += 56 + 20;
+        }
+        buffer.putInt(END_HEADER);
+        buffer.putShort((short) 0).putShort((short) 0); // disk numbers
+        buffer.putShort((short) Math.min(count, 0xFFFF)).putShort((short) Math.min(count, 0xFFFF));
+        buffer.putInt((int) Math.min(directorySize, ZIP64_MAGIC));
+        buffer.putInt((int) Math.min(directoryOffset, ZIP64_MAGIC));
+        buffer.putShort((short) 0); // comment length
+        position += 22;
+        flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (base == 0) channel.close(); // a nested archive's writer does not own the channel
+    }
+
+    private void write(final ByteBuffer data) throws IOException {
+        position += data.remaining();
+        if (data.remaining() <= buffer.remaining()) {
+            buffer.put(data);
+            return;
+        }
+        flush();
+        while (data.hasRemaining()) channel.write(data);
+    }
+
+    private void ensureCapacity(final int length) throws IOException {
+        if (buffer.remaining() < length) flush();
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) channel.write(buffer);
+        buffer.clear();
+    }
+
+    static int dosTime(final long millis, final TimeZone zone) {
+        final Calendar cal = Calendar.getInstance(zone);
+        cal.setTimeInMillis(millis);
+        final int year = cal.get(Calendar.YEAR);
+        if (year < 1980) return (1 << 21) | (1 << 16); // 1980-01-01
+        return (year - 1980) << 25 | (cal.get(Calendar.MONTH) + 1) << 21 | cal.get(Calendar.DAY_OF_MONTH) << 16 |
+               cal.get(Calendar.HOUR_OF_DAY) << 11 | cal.get(Calendar.MINUTE) << 5 | cal.get(Calendar.SECOND) >> 1;
+    }
+}
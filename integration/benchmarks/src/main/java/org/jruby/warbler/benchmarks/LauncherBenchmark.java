@@ -0,0 +1,160 @@
+package org.jruby.warbler.benchmarks;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Extraction done by the launchers: <tt>JarMain.extractArchive</tt> (class-path jars of a runnable
+ * jar) and the same for <tt>WarMain</tt>, which extracts the whole war (see <tt>getExtractEntryPath</tt>)
+ * or only part of it with <tt>warbler.extract.selective</tt>.
+ * <p/>
+ * The launcher classes locate the archive they are run from through their own class file, they get
+ * copied into the synthetic archives and loaded from there (the launchers are in the default package).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class LauncherBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Archives {
+
+        @Param({ "10000", "100000" })
+        public int entries;
+
+        File jar, war;
+        URLClassLoader jarLoader, warLoader;
+
+        @Setup(Level.Trial)
+        public void create() throws IOException {
+            jar = SyntheticArchives.jar(entries);
+            war = SyntheticArchives.war(entries);
+            // no parent: the launchers have to be loaded from (and thus run) the synthetic archives
+            jarLoader = new URLClassLoader(new URL[] { jar.toURI().toURL() }, null);
+            warLoader = new URLClassLoader(new URL[] { war.toURI().toURL() }, null);
+        }
+
+        @TearDown(Level.Trial)
+        public void delete() throws IOException {
+            jarLoader.close();
+            warLoader.close();
+            jar.delete();
+            war.delete();
+        }
+    }
+
+    /**
+     * Extraction with a single thread and with the default number of threads (one per processor).
+     */
+    @State(Scope.Thread)
+    public static class Threads {
+
+        @Param({ "1", "default" })
+        public String threads;
+
+        @Setup(Level.Trial)
+        public void setThreads() {
+            if ("default".equals(threads)) {
+                System.clearProperty("warbler.extract.threads");
+            } else {
+                System.setProperty("warbler.extract.threads", threads);
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void clearThreads() {
+            System.clearProperty("warbler.extract.threads");
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Selective {
+
+        @Param({ "false", "true" })
+        public boolean selective;
+
+        @Setup(Level.Trial)
+        public void setSelective() {
+            System.setProperty("warbler.extract.selective", Boolean.toString(selective));
+        }
+
+        @TearDown(Level.Trial)
+        public void clearSelective() {
+            System.clearProperty("warbler.extract.selective");
+        }
+    }
+
+    /**
+     * A launcher (created before each invocation) and the extraction it did (closed after it).
+     * Closing a launcher deletes the extracted files and de-registers its shutdown hook, thus
+     * invocations do not accumulate hooks (nor files to be deleted on exit).
+     */
+    @State(Scope.Thread)
+    public static class Launcher {
+
+        Method jarMainExtract, warMainExtract;
+        Closeable jarMain, warMain;
+
+        @Setup(Level.Trial)
+        public void lookup(final Archives archives) throws Exception {
+            jarMainExtract = extractArchive(archives.jarLoader);
+            warMainExtract = extractArchive(archives.warLoader);
+        }
+
+        @Setup(Level.Invocation)
+        public void create(final Archives archives) throws Exception {
+            jarMain = newLauncher(archives.jarLoader, "JarMain");
+            warMain = newLauncher(archives.warLoader, "WarMain");
+        }
+
+        @TearDown(Level.Invocation)
+        public void close() throws IOException {
+            jarMain.close();
+            warMain.close();
+        }
+    }
+
+    @Benchmark
+    public Object jarMainExtractArchive(final Launcher launcher, final Threads threads) throws Exception {
+        return launcher.jarMainExtract.invoke(launcher.jarMain);
+    }
+
+    @Benchmark
+    public Object warMainExtractArchive(final Launcher launcher, final Threads threads, final Selective selective) throws Exception {
+        return launcher.warMainExtract.invoke(launcher.warMain);
+    }
+
+    private static Closeable newLauncher(final ClassLoader loader, final String name) throws Exception {
+        final Constructor<?> constructor = Class.forName(name, true, loader).getDeclaredConstructor(String[].class);
+        constructor.setAccessible(true);
+        return (Closeable) constructor.newInstance((Object) new String[0]);
+    }
+
+    private static Method extractArchive(final ClassLoader loader) throws Exception {
+        final Method extractArchive = Class.forName("JarMain", true, loader).getDeclaredMethod("extractArchive");
+        extractArchive.setAccessible(true);
+        return extractArchive;
+    }
+}
@@ -0,0 +1,96 @@
+package org.jruby.warbler.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.jruby.Ruby;
+import org.jruby.RubyHash;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+import org.jruby.runtime.load.BasicLibraryService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The (Java) packager methods of <tt>Warbler::Jar</tt>: <tt>create_jar</tt> writing an archive from
+ * an application tree and <tt>entry_in_jar</tt> reading a single entry of an archive (a plain entry
+ * and one of a nested jar), as used for the launcher classes and the web server jar.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PackagerBenchmark {
+
+    @Param({ "10000", "100000" })
+    public int entries;
+
+    private Ruby runtime;
+    private IRubyObject jar;
+    private RubyHash files;
+    private File project, war;
+    private IRubyObject archivePath, warPath, nestedJarPath;
+    private IRubyObject lastEntry, nestedEntry;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        runtime = Ruby.newInstance();
+        runtime.evalScriptlet("require 'stringio'; module Warbler; class Jar; end; end");
+        // WarblerJarService (in the default package) defines the methods on Warbler::Jar
+        ((BasicLibraryService) Class.forName("WarblerJarService").getDeclaredConstructor().newInstance()).basicLoad(runtime);
+        jar = runtime.evalScriptlet("Warbler::Jar.new");
+
+        project = Files.createTempDirectory("warbler-benchmark").toFile();
+        files = RubyHash.newHash(runtime);
+        for (String file : SyntheticArchives.project(project, entries)) {
+            files.put(runtime.newString(file), runtime.newString(new File(project, file).getPath()));
+        }
+        archivePath = runtime.newString(new File(project, "benchmark.war").getPath());
+
+        war = SyntheticArchives.war(entries);
+        warPath = runtime.newString(war.getPath());
+        nestedJarPath = runtime.newString(war.getPath() + "!/WEB-INF/lib/lib-" + (SyntheticArchives.NESTED_JARS - 1) + ".jar");
+        lastEntry = runtime.newString(SyntheticArchives.LAST_ENTRY);
+        nestedEntry = runtime.newString(SyntheticArchives.NESTED_JAR_LAST_ENTRY);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        runtime.tearDown();
+        SyntheticArchives.deleteAll(project);
+        war.delete();
+    }
+
+    @Benchmark
+    public IRubyObject createJar() {
+        final ThreadContext context = runtime.getCurrentContext();
+        return jar.callMethod(context, "create_jar", new IRubyObject[] { archivePath, files });
+    }
+
+    @Benchmark
+    public IRubyObject entryInJar() {
+        final ThreadContext context = runtime.getCurrentContext();
+        return jar.callMethod(context, "entry_in_jar", new IRubyObject[] { warPath, lastEntry });
+    }
+
+    @Benchmark
+    public IRubyObject nestedEntryInJar() {
+        final ThreadContext context = runtime.getCurrentContext();
+        return jar.callMethod(context, "entry_in_jar", new IRubyObject[] { nestedJarPath, nestedEntry });
+    }
+}
@@ -0,0 +1,182 @@
+package org.jruby.warbler.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Enumeration;
+import java.util.Random;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Generates archives (and application trees) shaped like the ones Warbler produces: a few large
+ * class-path jars (stored, i.e. uncompressed), many small Ruby sources of gems and the application
+ * and some public assets. Contents are pseudo-random (but the same for a given number of entries).
+ */
+final class SyntheticArchives {
+
+    static final int NESTED_JARS = 8;
+    static final int NESTED_JAR_ENTRIES = 2000;
+    static final String LAST_ENTRY = "META-INF/init.rb";
+    static final String NESTED_JAR_LAST_ENTRY = "org/example/lib/Class" + (NESTED_JAR_ENTRIES - 1) + ".class";
+
+    private static final Pattern LAUNCHER_CLASS = Pattern.compile("(JarMain|WarMain)(\\$[^/]+)?\\.class");
+
+    private SyntheticArchives() { /* static only */ }
+
+    /**
+     * The Warbler jar the launcher classes (JarMain, WarMain) are taken from, given by the
+     * <tt>warbler.jar</tt> system property (set by the benchmarks pom).
+     */
+    static File warblerJar() {
+        final File jar = new File(System.getProperty("warbler.jar", "../../lib/warbler_jar.jar"));
+        if (!jar.isFile()) throw new IllegalStateException(jar + " not found (run `mvn package` in the root directory)");
+        return jar;
+    }
+
+    /**
+     * A runnable .war with the given (approximate) number of entries, class-path jars in WEB-INF/lib.
+     */
+    static File war(final int entries) throws IOException {
+        return archive("war", entries, "WEB-INF/lib/", "WEB-INF/gems/gems/", "WEB-INF/app/", "");
+    }
+
+    /**
+     * A runnable .jar with the given (approximate) number of entries, class-path jars in META-INF/lib.
+     */
+    static File jar(final int entries) throws IOException {
+        return archive("jar", entries, "META-INF/lib/", "gems/", "app/app/", "app/public/");
+    }
+
+    private static File archive(final String type, final int entries,
+        final String libDir, final String gemsDir, final String appDir, final String publicDir) throws IOException {
+        final File file = File.createTempFile("warbler-benchmark", '.' + type);
+        file.deleteOnExit();
+        final Random random = new Random(entries);
+        try (ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(file))) {
+            putEntry(zip, "META-INF/MANIFEST.MF", ("Manifest-Version: 1.0\nMain-Class: " +
+                ("war".equals(type) ? "WarMain" : "JarMain") + "\n\n").getBytes("UTF-8"), false);
+            copyLauncherClasses(zip);
+
+            for (int i = 0; i < NESTED_JARS; i++) {
+                putEntry(zip, libDir + "lib-" + i + ".jar", nestedJar(random), true);
+            }
+            int remaining = Math.max(0, entries - NESTED_JARS - 3);
+            final int assets = remaining / 20, app = remaining / 5;
+            for (int i = 0; i < assets; i++) {
+                putEntry(zip, publicDir + "assets/asset-" + i + ".css", text(random, 4096), false);
+            }
+            for (int i = 0; i < app; i++) {
+                putEntry(zip, appDir + "models/model_" + i + ".rb", text(random, 2048), false);
+            }
+            remaining -= assets + app;
+            for (int i = 0; i < remaining; i++) {
+                putEntry(zip, gemsDir + "gem-" + (i / 100) + "-1.0.0/lib/gem_" + (i / 100) + "/file_" + i + ".rb",
+                         text(random, 2048), false);
+            }
+            putEntry(zip, LAST_ENTRY, "# init\n".getBytes("UTF-8"), false);
+        }
+        return file;
+    }
+
+    /**
+     * Writes an application tree of the given number of files into the directory.
+     * @return the files (relative paths) written
+     */
+    static String[] project(final File dir, final int entries) throws IOException {
+        final Random random = new Random(entries);
+        final String[] files = new String[entries];
+        for (int i = 0; i < entries; i++) {
+            if (i < NESTED_JARS) {
+                files[i] = "lib/lib-" + i + ".jar";
+                write(new File(dir, files[i]), nestedJar(random));
+            } else {
+                files[i] = "gems/gem-" + (i / 100) + "-1.0.0/lib/file_" + i + ".rb";
+                write(new File(dir, files[i]), text(random, 2048));
+            }
+        }
+        return files;
+    }
+
+    private static void copyLauncherClasses(final ZipOutputStream zip) throws IOException {
+        try (ZipFile warblerJar = new ZipFile(warblerJar())) {
+            for (Enumeration<? extends ZipEntry> e = warblerJar.entries(); e.hasMoreElements(); ) {
+                final ZipEntry entry = e.nextElement();
+                if (!LAUNCHER_CLASS.matcher(entry.getName()).matches()) continue;
+                try (InputStream in = warblerJar.getInputStream(entry)) {
+                    putEntry(zip, entry.getName(), readFully(in), false);
+                }
+            }
+        }
+    }
+
+    private static byte[] nestedJar(final Random random) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(bytes)) {
+            for (int i = 0; i < NESTED_JAR_ENTRIES; i++) {
+                final byte[] data = new byte[512 + random.nextInt(2048)];
+                random.nextBytes(data);
+                putEntry(zip, "org/example/lib/Class" + i + ".class", data, false);
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] text(final Random random, final int maxLength) {
+        final byte[] text = new byte[64 + random.nextInt(maxLength)];
+        for (int i = 0; i < text.length; i++) {
+            text[i] = (byte) (i % 64 == 63 ? '\n' : 'a' + random.nextInt(8));
+        }
+        return text;
+    }
+
+    private static void putEntry(final ZipOutputStream zip, final String name, final byte[] data,
+        final boolean stored) throws IOException {
+        final ZipEntry entry = new ZipEntry(name);
+        if (stored) {
+            final CRC32 crc = new CRC32();
+            crc.update(data);
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(data.length);
+            entry.setCompressedSize(data.length);
+            entry.setCrc(crc.getValue());
+        }
+        zip.putNextEntry(entry);
+        zip.write(data);
+        zip.closeEntry();
+    }
+
+    private static void write(final File file, final byte[] data) throws IOException {
+        file.getParentFile().mkdirs();
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(data);
+        }
+    }
+
+    private static byte[] readFully(final InputStream in) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final byte[] buf = new byte[16384];
+        int read;
+        while ((read = in.read(buf)) != -1) bytes.write(buf, 0, read);
+        return bytes.toByteArray();
+    }
+
+    static void deleteAll(final File file) {
+        final File[] files = file.isDirectory() ? file.listFiles() : null;
+        if (files != null) {
+            for (File f : files) deleteAll(f);
+        }
+        try {
+            Files.deleteIfExists(file.toPath());
+        } catch (IOException e) {
+            file.deleteOnExit();
+        }
+    }
+}
@@ -46,6 +46,12 @@ class Warbler::Application < Rake::Application
     desc "Feature: precompile all Ruby files"
     task :compiled => "#{wt.name}:compiled"
 
+    desc "Feature: size the JRuby-Rack runtime pool from the measured boot cost"
+    task :runtimes => "#{wt.name}:runtimes"
+
+    desc "Train a CDS archive by running the archive once (e.g. warble executable war cds)"
+    task :cds => "#{wt.name}:cds"
+
     desc "Display version of Warbler"
     task :version => "#{wt.name}:version"
   end
@@ -0,0 +1,64 @@
+#--
+# Copyright (c) 2010-2012 Engine Yard, Inc.
+# Copyright (c) 2007-2009 Sun Microsystems, Inc.
+# This source code is available under the MIT license.
+# See the file LICENSE.txt for details.
+#++
+
+require 'fileutils'
+
+module Warbler
+  # Trains a (dynamic) Class Data Sharing archive for a runnable jar or war: the
+  # archive is run once with <tt>-XX:ArchiveClassesAtExit</tt> and the classes it
+  # loaded (JRuby, JRuby-Rack, the web server) are dumped to <tt>my.war.jsa</tt>
+  # when it exits. An executable war exits as soon as its web server is ready.
+  # Launched with <tt>-Dwarbler.cds=true</tt>, the launcher (JarMain) relaunches
+  # the JVM using the archive next to it.
+  class CDS
+    include PlatformHelper
+
+    attr_reader :config
+
+    def initialize(config)
+      @config = config
+    end
+
+    def archive
+      path = "#{config.jar_name}.#{config.jar_extension}"
+      path = File.join(config.autodeploy_dir, path) if config.autodeploy_dir
+      File.expand_path(path)
+    end
+
+    def shared_archive
+      "#{archive}.jsa"
+    end
+
+    # The extraction cache the archive is trained with (and the launcher
+    # relaunches with) unless config.cds_java_options set a stable layout.
+    def extract_cache
+      "#{archive}.cache"
+    end
+
+    # The training run, the (absolute) archive path has to be the one the
+    # launcher relaunches with, as the JVM validates the class-path. The jars
+    # are extracted to a stable location, for the same reason.
+    def command
+      options = config.cds_java_options
+      unless options.any? { |o| o.start_with?('-Dwarbler.extract.cache=') || o == '-Dwarbler.extract.jars=false' }
+        options = [ "-Dwarbler.extract.cache=#{extract_cache}", *options ]
+      end
+      [java_executable, "-XX:ArchiveClassesAtExit=#{shared_archive}", '-Dwarbler.cds.training=true',
+       *options, '-jar', archive, *config.cds_training_args]
+    end
+
+    def train
+      raise "#{archive} not found, create it before training a CDS archive" unless File.file?(archive)
+      FileUtils.rm_f shared_archive
+      puts "Training CDS archive #{shared_archive}"
+      unless system(*command) && File.file?(shared_archive)
+        raise "CDS training run failed (#{command.join(' ')})"
+      end
+      shared_archive
+    end
+  end
+end
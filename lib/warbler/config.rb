@@ -5,6 +5,7 @@
 # See the file LICENSE.txt for details.
 #++
 
+require 'etc'
 require 'set'
 require 'warbler/gems'
 require 'warbler/traits'
@@ -17,6 +18,7 @@ module Warbler
     TOP_DIRS = %w(app db config lib log script vendor)
     CONFIG_DIR = "config"
     FILE = "#{CONFIG_DIR}/warble.rb"
+    STORED_ENTRIES = [ /\.(jar|war|gem|zip|gz|tgz|bz2|xz|zst|br)\z/i, /\.(png|jpe?g|gif|webp|ico|woff2?)\z/i ]
 
     include Traits
 
@@ -25,6 +27,7 @@ module Warbler
     # - gemjar: package the gem repository in a jar file in WEB-INF/lib
     # - executable: embed a web server and make the war executable
     # - compiled: compile .rb files to .class files
+    # - runtimes: size the JRuby-Rack runtime pool from the measured boot cost
     attr_accessor :features
 
     # Traits: an array of trait classes corresponding to
@@ -102,6 +105,11 @@ module Warbler
     # Defaults to ["development", "test", "assets"].
     attr_accessor :bundle_without
 
+    # Resolve the bundle when packaging: init.rb sets the load paths of the bundled gems
+    # directly and Bundler only gets loaded if the application requires it (e.g.
+    # <tt>require 'bundler/setup'</tt>). Defaults to false.
+    attr_accessor :bundler_snapshot
+
     # Use JBundler to locate gems if Jarfile is found. Default is true.
     attr_accessor :jbundler
 
@@ -121,6 +129,11 @@ module Warbler
     # Ignored unless compile feature is used.
     attr_accessor :jrubyc_options
 
+    # Directory of a (persistent) cache of compiled .class files, Ruby files which have been
+    # compiled before (same source, JRuby version and compiler options) are not compiled again.
+    # Ignored unless compile feature is used. Defaults to the WARBLER_JRUBYC_CACHE env variable.
+    attr_accessor :jrubyc_cache
+
     # Warbler writes an "init" file into the war at this location. JRuby-Rack and possibly other
     # launchers may use this to initialize the Ruby environment.
     attr_accessor :init_filename
@@ -139,6 +152,52 @@ module Warbler
     # specified when ruby files are compiled using jrubyc
     attr_accessor :bytecode_version
 
+    # Deflate compression level (0-9) for entries of the created archive, 0 stores
+    # entries without compression. Defaults to nil (the zlib default level).
+    attr_accessor :compression_level
+
+    # Array of regular expressions matching archive entries which are stored without
+    # compression, since their contents are compressed already. Stored nested jars
+    # might also be used in place at runtime. Defaults to STORED_ENTRIES (nested jars,
+    # gems, compressed archives, images and web fonts).
+    attr_accessor :stored_entries
+
+    # Rebuild the archive incrementally: entries of the previously built archive are
+    # reused as they are (without being compressed again) when their source files did
+    # not change (same size and modification time, or same contents). The modification
+    # times are recorded next to the archive (in <archive>.idx). Defaults to false.
+    attr_accessor :incremental
+
+    # Build a reproducible archive: all entries get the same timestamp (SOURCE_DATE_EPOCH
+    # when set, 1980-01-01 otherwise) and normalized permissions, thus the same input
+    # produces the very same archive. Defaults to true when SOURCE_DATE_EPOCH is set.
+    attr_accessor :reproducible
+
+    # Package an index of the archive's Ruby files, which init.rb uses to resolve required
+    # features directly instead of probing each $LOAD_PATH directory. Defaults to false.
+    attr_accessor :feature_index
+
+    # Package the specifications of all gems marshalled into a single snapshot, which
+    # init.rb loads instead of evaluating each .gemspec file. Defaults to false.
+    attr_accessor :gemspec_snapshot
+
+    # Heap (in megabytes) the runtimes feature sizes the JRuby-Rack runtime pool for,
+    # i.e. the -Xmx of the JVM running the war. Defaults to 1024.
+    attr_accessor :runtime_pool_heap
+
+    # Number of cores the runtimes feature sizes the runtime pool for, at most one
+    # runtime per core is recommended. Defaults to the number of processors.
+    attr_accessor :runtime_pool_cores
+
+    # JVM options of the CDS training run (the cds task), e.g. the launcher options
+    # the archive is run with: <tt>-Dwarbler.extract.cache=...</tt> (which defaults
+    # to <tt>my.war.cache</tt>). Defaults to none.
+    attr_accessor :cds_java_options
+
+    # Arguments of the CDS training run, e.g. <tt>%w(-S rake -T)</tt> for a runnable
+    # (not executable) war. Defaults to none.
+    attr_accessor :cds_training_args
+
     # Extra configuration for web.xml. Controls how the dynamically-generated web.xml
     # file is generated.
     #
@@ -169,6 +228,8 @@ module Warbler
 
     # Embedded webserver to use. Currently supported webservers are:
     # * <tt>jetty</tt> - Embedded Jetty from Eclipse
+    # * <tt>jetty-embedded</tt> - Jetty started (and stopped) by the launcher itself
+    #   (see WarMain::WebServerLauncher)
     attr_accessor :webserver
 
     # If set to true, Warbler will move jar files into the WEB-INF/lib directory of the
@@ -209,6 +270,13 @@ module Warbler
       @warbler_scripts = "#{WARBLER_HOME}/lib/warbler/scripts"
       @move_jars_to_webinf_lib = false
       @compile_gems      = false
+      @jrubyc_cache      = ENV['WARBLER_JRUBYC_CACHE']
+      @stored_entries    = STORED_ENTRIES.dup
+      @reproducible      = !ENV['SOURCE_DATE_EPOCH'].to_s.empty?
+      @runtime_pool_heap = 1024
+      @runtime_pool_cores = Etc.nprocessors
+      @cds_java_options  = []
+      @cds_training_args = []
 
       before_configure
       yield self if block_given?
@@ -16,23 +16,34 @@ module Warbler
   # * +nil+ representing a directory entry
   # * Any object responding to +read+ representing an in-memory blob
   # * A String filename pointing to a file on disk
+  # * A Warbler::Jar, written as a (stored) nested jar e.g. the gems.jar
   class Jar
     include PathmapHelper
     include RakeHelper
     include PlatformHelper
 
     DEFAULT_MANIFEST = %{Manifest-Version: 1.0\nCreated-By: Warbler #{Warbler::VERSION}\n\n}
+    REPRODUCIBLE_TIMESTAMP = Time.utc(1980, 1, 1).to_i
+    FEATURE_INDEX = 'META-INF/warbler-features.idx'
+    GEMSPEC_SNAPSHOT = 'warbler-specs.marshal'
 
     attr_reader :files
     attr_reader :app_filelist
+    # Paths (within the archive) of Ruby files that have been compiled.
+    attr_reader :compiled_files
 
     def initialize
       @files = {}
+      @compiled_files = []
     end
 
     def contents(entry)
       file = files[entry]
-      file.respond_to?(:read) ? file.read : File.read(file)
+      if Warbler::Jar === file
+        with_nested_jar(file) { |path| File.binread(path) }
+      else
+        file.respond_to?(:read) ? file.read : File.read(file)
+      end
     end
 
     def compile(config)
@@ -55,20 +66,112 @@ module Warbler
     DEFAULT_COMPILED_FILES_SLICE = 2500
 
     def run_jrubyc(config, compiled_ruby_files)
+      options = jrubyc_options(config)
+      if options =~ /--java(c)?\b/
+        run_jrubyc_slices(config, compiled_ruby_files, options)
+      else
+        run_jrubyc_worker(config, compiled_ruby_files, options)
+      end
+      @compiled = true
+    end
+
+    # Compile all files using a single JRuby process (and a pool of threads).
+    # Files compiled previously are taken from the jrubyc cache (if configured).
+    # The .class files are written to a temporary directory, removed by
+    # #remove_compiled_classes once the archive is created (or when exiting).
+    def run_jrubyc_worker(config, compiled_ruby_files, options)
+      require 'tempfile'
+      require 'tmpdir'
+      remove_compiled_classes
+      @jrubyc_target = target = Dir.mktmpdir('warbler-jrubyc')
+      at_exit { FileUtils.rm_rf(target) }
+
+      if cache_dir = config.jrubyc_cache
+        cached = compiled_ruby_files.inject({}) do |h, f|
+          key = jrubyc_cache_key(config, options, f)
+          h.merge!(f => File.join(cache_dir, key[0, 2], "#{key}.class"))
+        end
+        hits, compiled_ruby_files = compiled_ruby_files.partition { |f| File.file?(cached[f]) }
+        hits.each { |f| copy_file_to(cached[f], compiled_class_file(f)) }
+      end
+
+      unless compiled_ruby_files.empty?
+        Tempfile.open('warbler-jrubyc') do |file_list|
+          file_list.puts(compiled_ruby_files)
+          file_list.close
+          worker = File.expand_path('../jrubyc_worker.rb', __FILE__)
+          threads = (ENV['WARBLER_JRUBYC_THREADS'] || 0).to_i
+          sh_jrubyc java_cmd(config, %Q{"#{worker}" "#{@jrubyc_target}" "#{file_list.path}" #{threads} #{options}})
+        end
+      end
+
+      if cache_dir
+        compiled_ruby_files.each do |f|
+          class_file = compiled_class_file(f)
+          copy_file_to(class_file, cached[f]) if File.file?(class_file)
+        end
+        puts "jrubyc cache (#{cache_dir}): #{hits.size} hits, #{compiled_ruby_files.size} misses" unless silent?
+      end
+    end
+    private :run_jrubyc_worker
+
+    # Cached .class files are keyed by the (path and contents of the) source and
+    # whatever else affects the compiled bytecode: JRuby version and compiler options.
+    def jrubyc_cache_key(config, options, ruby_source)
+      require 'digest'
+      @jrubyc_cache_prefix ||= begin
+        jruby_jars = config.java_libs.select { |lib| File.basename(lib) =~ /\Ajruby/ }
+        [ jruby_jars.map { |lib| "#{File.basename(lib)}:#{File.size?(lib)}" }.sort.join(','),
+          options, config.bytecode_version ].join("\0")
+      end
+      digest = Digest::SHA256.new
+      digest << @jrubyc_cache_prefix << "\0" << ruby_source << "\0" << File.binread(ruby_source)
+      digest.hexdigest
+    end
+    private :jrubyc_cache_key
+
+    def copy_file_to(source, target)
+      FileUtils.mkdir_p(File.dirname(target))
+      FileUtils.copy(source, "#{target}.tmp")
+      File.rename("#{target}.tmp", target) # cached files are replaced atomically
+    end
+    private :copy_file_to
+
+    # Compile files (slice by slice) with the jrubyc command, .class files are written next to the sources.
+    def run_jrubyc_slices(config, compiled_ruby_files, options)
       slice_size = (ENV['WARBLER_COMPILED_FILES_SLICE'] || 0).to_i
       slice_size = DEFAULT_COMPILED_FILES_SLICE if slice_size <= 0
       compiled_ruby_files.each_slice(slice_size) do |files|
         files = "\"#{files.join('" "')}\""
-        classpath = config.java_libs.map { |lib| "\"#{lib.gsub('"', '\\"')}\"" }.join(File::PATH_SEPARATOR)
-        # Need to use the version of JRuby in the application to compile it
-        javac_cmd = %Q{java -classpath #{classpath} #{java_version(config)} org.jruby.Main -S jrubyc #{jrubyc_options(config)} #{files}}
-        if which('java').nil? && which('env')
-          sh_jrubyc %Q{env -i #{javac_cmd}}
-        else
-          sh_jrubyc javac_cmd
-        end
+        sh_jrubyc java_cmd(config, "-S jrubyc #{options} #{files}")
       end
-      @compiled = true
+      @jrubyc_target = nil
+    end
+    private :run_jrubyc_slices
+
+    def java_cmd(config, jruby_args)
+      classpath = config.java_libs.map { |lib| "\"#{lib.gsub('"', '\\"')}\"" }.join(File::PATH_SEPARATOR)
+      # Need to use the version of JRuby in the application to compile it
+      java_cmd = %Q{java -classpath #{classpath} #{java_version(config)} org.jruby.Main #{jruby_args}}
+      which('java').nil? && which('env') ? %Q{env -i #{java_cmd}} : java_cmd
+    end
+    private :java_cmd
+
+    # Location of the .class file compiled from the given Ruby source. The worker compiles
+    # sources given by an absolute path (e.g. gems outside of the application) relative to
+    # their file system root: /opt/gems/foo.rb is compiled to TARGET/opt/gems/foo.class
+    def compiled_class_file(ruby_source)
+      class_file = ruby_source.sub(/\.rb$/, '.class')
+      return class_file unless @jrubyc_target
+      path = Pathname.new(class_file)
+      path = path.relative_path_from(Pathname.new(File.expand_path('/', class_file))) if path.absolute?
+      File.join(@jrubyc_target, path.to_s)
+    end
+    private :compiled_class_file
+
+    # Removes the .class files compiled into a temporary directory (after the archive is created).
+    def remove_compiled_classes
+      FileUtils.rm_rf(@jrubyc_target) if @jrubyc_target
     end
 
     def sh_jrubyc(cmd)
@@ -96,6 +199,11 @@ module Warbler
 
       compiled_ruby_files.each do |ruby_source|
         files[apply_pathmaps(config, ruby_source, :application)] = StringIO.new("load __FILE__.sub(/\.rb$/, '.class')")
+        @compiled_files << apply_pathmaps(config, ruby_source, :application)
+        # otherwise compiled (next to the source) .class files are found along with the application files
+        if @jrubyc_target
+          files[apply_pathmaps(config, ruby_source.sub(/\.rb$/, '.class'), :application)] = compiled_class_file(ruby_source)
+        end
       end
     end
 
@@ -115,7 +223,8 @@ module Warbler
           pathmap = :application
         end
         files[apply_pathmaps(config, inside_jar, pathmap)] = StringIO.new("load __FILE__.sub(/\.rb$/, '.class')")
-        files[apply_pathmaps(config, inside_jar.sub(/\.rb$/, '.class'), pathmap)] = file_system_location.sub(/\.rb$/, '.class')
+        @compiled_files << apply_pathmaps(config, inside_jar, pathmap)
+        files[apply_pathmaps(config, inside_jar.sub(/\.rb$/, '.class'), pathmap)] = compiled_class_file(file_system_location)
       end
     end
 
@@ -165,13 +274,35 @@ module Warbler
         path = "#{config_or_path.jar_name}.#{config_or_path.jar_extension}"
         path = File.join(config_or_path.autodeploy_dir, path) if config_or_path.autodeploy_dir
       end
-      rm_f path
+      options = create_options(config_or_path)
+      # the source file stamps of an incremental build are kept next to (not within) the archive
+      options[:index] = "#{path}.idx" if options[:incremental]
+      if options[:incremental] && File.file?(path)
+        # keep the previous archive around to copy unchanged entries from
+        options[:previous] = "#{path}.prev"
+        mv path, options[:previous]
+      else
+        rm_f path
+      end
       ensure_directory_entries
       if Warbler::Config === config_or_path
         @files.delete("#{config_or_path.jar_name}/#{path}")
+        @files.delete("#{config_or_path.jar_name}/#{options[:previous]}") if options[:previous]
+        @files.delete("#{config_or_path.jar_name}/#{options[:index]}") if options[:index]
+        add_feature_index if config_or_path.feature_index
       end
       puts "Creating #{path}" unless silent?
-      create_jar path, @files
+      create_jar path, @files, options
+      created = true
+    ensure
+      if options && options[:previous]
+        if created
+          rm_f options[:previous]
+        elsif File.file?(options[:previous]) # keep the previous archive rather than a partial one
+          rm_f path
+          mv options[:previous], path
+        end
+      end
     end
 
     # Invoke a hook to allow the project traits to add or modify the archive contents.
@@ -204,10 +335,20 @@ module Warbler
     # Add gems to WEB-INF/gems
     def find_gems_files(config)
       unless @compiled && config.compile_gems
+        @gem_specs = []
         config.gems.specs(config.gem_dependencies).each {|spec| find_single_gem_files(config, spec) }
+        add_gemspec_snapshot(config) if config.gemspec_snapshot
       end
     end
 
+    # Add all (packaged) gem specifications marshalled into a single file, next to the
+    # .gemspec files, see the specs.erb init template.
+    def add_gemspec_snapshot(config)
+      specs = @gem_specs.map { |spec| spec.is_a?(Gem::Specification) ? spec : spec.to_spec }.uniq(&:full_name)
+      snapshot = Marshal.dump([ Gem.marshal_version, specs ])
+      @files[apply_pathmaps(config, GEMSPEC_SNAPSHOT, :gemspecs)] = StringIO.new(snapshot)
+    end
+
     # Add a single gem to WEB-INF/gems
     def find_single_gem_files(config, spec)
       full_gem_path = Pathname.new(spec.full_gem_path)
@@ -228,6 +369,7 @@ module Warbler
       end
 
       @files[apply_pathmaps(config, "#{spec.full_name}.gemspec", :gemspecs)] = StringIO.new(spec.to_ruby)
+      @gem_specs << spec if @gem_specs
       FileList["#{full_gem_path.to_s}/**/*"].each do |src|
         f = Pathname.new(src).relative_path_from(full_gem_path).to_s
         next if config.gem_excludes && config.gem_excludes.any? {|rx| f =~ rx }
@@ -259,7 +401,12 @@ module Warbler
     def add_init_file(config)
       if config.init_contents
         contents = ''
-        config.init_contents.each do |file|
+        init_contents = config.init_contents
+        # compiled files are loaded through an index (the .rb stubs remain as a fallback)
+        init_contents += [ "#{config.warbler_templates}/compiled.erb" ] unless compiled_files.empty?
+        init_contents += [ "#{config.warbler_templates}/features.erb" ] if config.feature_index
+        init_contents += [ "#{config.warbler_templates}/specs.erb" ] if config.gemspec_snapshot
+        init_contents.each do |file|
           if file.respond_to?(:read)
             contents << file.read
           elsif File.extname(file) == '.erb'
@@ -278,6 +425,26 @@ module Warbler
       end
     end
 
+    # Add a launcher class (e.g. JarMain) from the Warbler jar to the root of
+    # the archive, along with its nested (support) classes.
+    def add_launcher_class(klass)
+      pattern = /\A#{Regexp.quote(klass)}(\$[^\/]+)?\.class\z/
+      warbler_jar_entries.grep(pattern).each do |entry|
+        @files[entry] = entry_in_jar(WARBLER_JAR, entry)
+      end
+    end
+
+    def warbler_jar_entries
+      @warbler_jar_entries ||= ZipSupport.open(WARBLER_JAR) { |zf| zf.entries.map(&:name) }
+    end
+    private :warbler_jar_entries
+
+    # Index of the archive's Ruby files (features), see the features.erb init template.
+    def add_feature_index
+      features = @files.keys.select { |f| f.end_with?('.rb') && !@files[f].nil? }
+      @files[FEATURE_INDEX] = StringIO.new(features.map { |f| f[0...-3] }.sort.join("\n"))
+    end
+
     def add_with_pathmaps(config, f, map_type)
       @files[apply_pathmaps(config, f, map_type)] = f
     end
@@ -303,12 +470,50 @@ module Warbler
       end
     end
 
-    def create_jar(jar_path, entries)
-      ZipSupport.create(jar_path) do |zipfile|
+    # Options for writing the archive entries, derived from the config (if any).
+    def create_options(config)
+      return {} unless Warbler::Config === config
+      stored_entries = Array(config.stored_entries)
+      { :compression_level => config.compression_level,
+        :stored_entries => (Regexp.union(stored_entries) unless stored_entries.empty?),
+        :incremental => config.incremental,
+        :timestamp => (reproducible_timestamp if config.reproducible) }
+    end
+    private :create_options
+
+    # Entry timestamp for reproducible archives: SOURCE_DATE_EPOCH (when set) or 1980-01-01.
+    def reproducible_timestamp
+      epoch = ENV['SOURCE_DATE_EPOCH']
+      epoch.nil? || epoch.empty? ? REPRODUCIBLE_TIMESTAMP : Integer(epoch)
+    end
+    private :reproducible_timestamp
+
+    # Creates a nested jar (e.g. the gems.jar) in a temporary file, yields its path.
+    def with_nested_jar(jar, options = {}, create = :create_jar)
+      require 'tempfile'
+      Tempfile.create(['nested', '.jar']) do |tmp|
+        tmp.close
+        jar.send(create, tmp.path, jar.files, options)
+        yield tmp.path
+      end
+    end
+    private :with_nested_jar
+
+    # The rubyzip implementation of #create_jar (which is replaced on JRuby).
+    def create_jar_with_rubyzip(jar_path, entries, options = {})
+      ZipSupport.create(jar_path, compression_level: options[:compression_level],
+                                  timestamp: options[:timestamp]) do |zipfile|
+        stored_entries = options[:stored_entries]
         entries.keys.sort.each do |entry|
           src = entries[entry]
-          if src.respond_to?(:read)
-            zipfile.get_output_stream(entry) { |f| f << src.read }
+          name = stored_entries && stored_entries =~ entry ? ZipSupport.stored_entry(zipfile, entry) : entry
+          if Warbler::Jar === src # a nested jar, e.g. the gems.jar
+            with_nested_jar(src, options, :create_jar_with_rubyzip) do |path|
+              stored = ZipSupport.stored_entry(zipfile, entry) # stored, as written by WarblerJar
+              zipfile.get_output_stream(stored) { |f| File.open(path, 'rb') { |io| IO.copy_stream(io, f) } }
+            end
+          elsif src.respond_to?(:read)
+            zipfile.get_output_stream(name) { |f| IO.copy_stream(src, f) } # in chunks, not all in memory
           elsif src.nil? || File.directory?(src)
             if File.symlink?(entry) && ! defined?(JRUBY_VERSION)
               warn "directory symlinks are not followed unless using JRuby; " +
@@ -316,9 +521,9 @@ module Warbler
             end
             zipfile.mkdir(entry.dup) # in case it's frozen rubyzip 0.9.6.1 workaround
           elsif File.symlink?(src)
-            zipfile.get_output_stream(entry) { |f| f << File.read(src) }
+            zipfile.get_output_stream(name) { |f| File.open(src, 'rb') { |io| IO.copy_stream(io, f) } }
           elsif File.exist?(src)
-            zipfile.add(entry, src)
+            zipfile.add(name, src)
           else
             warn "file not found; #{entry.inspect} not in archive"
           end
@@ -326,6 +531,8 @@ module Warbler
       end
     end
 
+    alias_method :create_jar, :create_jar_with_rubyzip
+
     def entry_in_jar(jar, entry)
       ZipSupport.open(jar) do |zf|
         zf.get_input_stream(entry) {|io| StringIO.new(io.read) }
@@ -0,0 +1,46 @@
+#--
+# Copyright (c) 2010-2012 Engine Yard, Inc.
+# Copyright (c) 2007-2009 Sun Microsystems, Inc.
+# This source code is available under the MIT license.
+# See the file LICENSE.txt for details.
+#++
+
+# Compiles Ruby files to .class files using a single JRuby process (the application's
+# JRuby) and a pool of threads. Run by Warbler::Jar#run_jrubyc as:
+#
+#   jruby jrubyc_worker.rb TARGET FILE_LIST THREADS [JRUBYC_OPTIONS...]
+#
+# TARGET is the directory compiled classes are written to, FILE_LIST a file listing
+# the Ruby files (one per line) and THREADS the number of compiling threads (0 for
+# the number of available processors). Classes of relative paths are written relative
+# to the current directory, those of absolute paths relative to their file system root
+# (TARGET/opt/gems/foo.class for /opt/gems/foo.rb).
+require 'jruby/compiler'
+require 'pathname'
+
+target, file_list, threads, *options = ARGV
+files = File.readlines(file_list).map(&:chomp).reject(&:empty?)
+threads = threads.to_i
+threads = java.lang.Runtime.getRuntime.availableProcessors if threads <= 0
+
+slices = Queue.new
+roots = files.group_by { |file| File.expand_path('/', file) if Pathname.new(file).absolute? }
+roots.each do |root, sources|
+  sources.each_slice(50) { |slice| slices << [ root, slice ] }
+end
+
+failures = 0
+lock = Mutex.new
+workers = [ threads, slices.size ].min.times.map do
+  Thread.new do
+    until slices.empty?
+      root, slice = slices.pop(true) rescue break
+      basedir = root ? [ '-d', root ] : []
+      errors = JRuby::Compiler.compile_argv(options + basedir + [ '-t', target ] + slice)
+      lock.synchronize { failures += errors } if errors.is_a?(Integer)
+    end
+  end
+end
+workers.each(&:join)
+
+exit(failures > 0 ? 1 : 0)
@@ -21,6 +21,12 @@ module Warbler
       end
       return nil
     end
+
+    # The java executable of JAVA_HOME (or of the running JRuby), java from the $PATH otherwise.
+    def java_executable
+      java_home = ENV['JAVA_HOME'] || (defined?(JRUBY_VERSION) && ENV_JAVA['java.home'])
+      java_home ? File.join(java_home, 'bin', 'java') : 'java'
+    end
   end
 end
 
@@ -0,0 +1,187 @@
+#--
+# Copyright (c) 2010-2012 Engine Yard, Inc.
+# Copyright (c) 2007-2009 Sun Microsystems, Inc.
+# This source code is available under the MIT license.
+# See the file LICENSE.txt for details.
+#++
+
+require 'json'
+require 'tmpdir'
+require 'fileutils'
+
+module Warbler
+  # Sizes the JRuby-Rack runtime pool (the <tt>jruby.min.runtimes</tt> and
+  # <tt>jruby.max.runtimes</tt> context parameters) from the measured cost of
+  # booting the application: once the archive is created it is booted in a
+  # separate JVM (with the JRuby it packages), which boots two runtimes and reports
+  # the boot time and the heap an additional runtime costs. The archive is then
+  # re-created with the pool set in its web.xml.
+  class RuntimePool
+    include PlatformHelper
+    include PathmapHelper
+
+    # Share of the heap left to requests (garbage) rather than to runtimes.
+    HEAP_HEADROOM = 0.25
+    # Applications booting slower than this (seconds) keep all runtimes booted.
+    SLOW_BOOT = 10
+
+    # Boots the application (from the WEB-INF directory of the extracted archive,
+    # its init.rb given as argument) in two runtimes of their own and prints the
+    # measurement as JSON: the second runtime's heap is the full cost of a pooled
+    # runtime (JRuby core included), the rest is shared (JVM and loaded classes).
+    MEASURE_SCRIPT = <<-'RUBY'
+      require 'java'
+      require 'json'
+      def heap_used
+        3.times { java.lang.System.gc }
+        java.lang.management.ManagementFactory.memory_mx_bean.heap_memory_usage.used
+      end
+      def boot_runtime(script)
+        container = org.jruby.embed.ScriptingContainer.new(org.jruby.embed.LocalContextScope::SINGLETHREAD)
+        container.current_directory = Dir.pwd
+        start = Process.clock_gettime(Process::CLOCK_MONOTONIC)
+        container.run_scriptlet(script)
+        [ container, Process.clock_gettime(Process::CLOCK_MONOTONIC) - start ]
+      end
+      boot = "load #{ARGV.shift.inspect}\n$LOAD_PATH.unshift #{Dir.pwd.inspect}\n" + <<-'BOOT'
+        if File.exist?('config/environment.rb')
+          require File.expand_path('config/environment')
+          Rails.application.eager_load! if defined?(Rails.application.eager_load!)
+        else
+          require 'rack'
+          Rack::Builder.parse_file('config.ru')
+        end
+      BOOT
+      first, = boot_runtime(boot)
+      one = heap_used
+      second, seconds = boot_runtime(boot)
+      runtime = heap_used - one
+      puts({ 'base_heap' => [one - runtime, 0].max, 'runtime_heap' => runtime, 'boot_seconds' => seconds }.to_json)
+      [ first, second ].each(&:terminate)
+    RUBY
+
+    attr_reader :config
+
+    def initialize(config)
+      @config = config
+    end
+
+    def archive
+      path = "#{config.jar_name}.#{config.jar_extension}"
+      path = File.join(config.autodeploy_dir, path) if config.autodeploy_dir
+      File.expand_path(path)
+    end
+
+    # Measures the created archive and sets the pool parameters in config.webxml,
+    # unless they have been set explicitly (e.g. to 1 for thread-safe Rails), then
+    # re-creates the archive (of the given Warbler::Jar) with them.
+    def configure(jar)
+      if context_params['jruby.min.runtimes'] || context_params['jruby.max.runtimes']
+        puts "jruby.min.runtimes/jruby.max.runtimes are configured, not sizing the runtime pool"
+        return
+      end
+      measurement = measure(archive)
+      pool = recommend(measurement)
+      puts "Booting a runtime took #{measurement['boot_seconds'].round(1)}s and " \
+           "#{megabytes(measurement['runtime_heap'])}MB of heap, " \
+           "runtime pool for a #{config.runtime_pool_heap}MB heap and #{config.runtime_pool_cores} cores: " \
+           "#{pool[:min]} to #{pool[:max]} runtimes"
+      config.webxml.jruby.min.runtimes = pool[:min]
+      config.webxml.jruby.max.runtimes = pool[:max]
+      config.webxml.jruby.runtime.init.threads = pool[:init_threads]
+      update(jar)
+      pool
+    end
+
+    # Boots the application from the (created) archive once, in a separate JVM
+    # running the JRuby and the gems it packages.
+    def measure(archive)
+      raise "#{archive} not found, create it before measuring its runtimes" unless File.file?(archive)
+      Dir.mktmpdir('warbler-runtimes') do |root|
+        extract(archive, root)
+
+        webinf = File.join(root, 'WEB-INF')
+        env = { 'RAILS_ENV' => rails_env, 'RACK_ENV' => rails_env }
+        command = [java_executable, '-cp', File.join(webinf, 'lib', '*'), 'org.jruby.Main',
+                   '-e', MEASURE_SCRIPT, File.join(root, config.init_filename)]
+        output = IO.popen(env, command, chdir: webinf, &:read)
+        raise "failed to boot the application (exit status #{$?.exitstatus})" unless $?.success?
+        JSON.parse(output.lines.last)
+      end
+    end
+
+    # Runtimes get the heap left after the base usage (JVM and JRuby) and
+    # HEAP_HEADROOM, at most one per core. Slow booting applications keep all
+    # of them booted (booting on demand would stall requests), others boot
+    # half of them up-front.
+    def recommend(measurement)
+      heap = config.runtime_pool_heap * 1024 * 1024 * (1 - HEAP_HEADROOM) - measurement['base_heap']
+      runtime_heap = [measurement['runtime_heap'], 1].max
+      max = [[(heap / runtime_heap).floor, config.runtime_pool_cores].min, 1].max
+      min = measurement['boot_seconds'] >= SLOW_BOOT ? max : [(max / 2.0).ceil, 1].max
+      { :min => min, :max => max, :init_threads => [min, config.runtime_pool_cores].min }
+    end
+
+    # Re-creates the archive with web.xml generated again (now including the pool),
+    # every other entry is copied from the measured archive as it is.
+    def update(jar)
+      template = config.webinf_files.detect do |f|
+        f.to_s =~ /\.erb\z/ && apply_pathmaps(config, f, :webinf) == 'WEB-INF/web.xml'
+      end
+      unless template && jar.files.key?('WEB-INF/web.xml')
+        puts "web.xml is not generated, add the runtime pool to it"
+        return
+      end
+      jar.files['WEB-INF/web.xml'] = jar.expand_erb(template, config)
+      rewind(jar.files) # contents read by the first create
+
+      incremental = config.incremental
+      begin
+        config.incremental = true # entries with the same contents are reused
+        jar.create(config)
+      ensure
+        config.incremental = incremental
+        FileUtils.rm_f "#{archive}.idx" unless incremental
+      end
+    end
+
+    private
+
+    def rewind(files)
+      files.each_value do |value|
+        if Warbler::Jar === value
+          rewind(value.files)
+        elsif value.respond_to?(:rewind)
+          value.rewind
+        end
+      end
+    end
+
+    # The context parameters set in config.webxml (none for a jar).
+    def context_params
+      config.webxml ? config.webxml.context_params(false) : {}
+    end
+
+    def rails_env
+      context_params['rails.env'] || 'production'
+    end
+
+    def extract(archive, root)
+      ZipSupport.open(archive) do |zf|
+        zf.each do |entry|
+          path = File.join(root, entry.name)
+          if entry.directory?
+            FileUtils.mkdir_p path
+          else
+            FileUtils.mkdir_p File.dirname(path)
+            entry.get_input_stream { |io| File.open(path, 'wb') { |f| IO.copy_stream(io, f) } }
+          end
+        end
+      end
+    end
+
+    def megabytes(bytes)
+      (bytes / (1024.0 * 1024)).round
+    end
+  end
+end
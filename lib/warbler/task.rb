@@ -65,6 +65,8 @@ module Warbler
       namespace name do
         define_clean_task
         define_compiled_task
+        define_cds_task
+        define_runtimes_task
         define_files_task
         define_jar_task
         define_debug_task
@@ -100,6 +102,8 @@ module Warbler
       desc "Remove the project #{config.jar_extension} file"
       task "clean" do
         rm_f "#{config.jar_name}.#{config.jar_extension}"
+        rm_f "#{config.jar_name}.#{config.jar_extension}.jsa"
+        rm_f "#{config.jar_name}.#{config.jar_extension}.idx"
       end
       task "clear" => "#{name}:clean"
     end
@@ -109,10 +113,27 @@ module Warbler
         jar.compile(config)
         task @name do
           rm_f config.compiled_ruby_files.map {|f| f.sub(/\.rb$/, '.class') }
+          jar.remove_compiled_classes
         end
       end
     end
 
+    def define_cds_task
+      task "cds" do
+        require 'warbler/cds'
+        Warbler::CDS.new(config).train
+      end
+    end
+
+    # Sizes the runtime pool once the archive is created (by measuring it), before
+    # anything created for the archive (e.g. compiled classes) gets removed.
+    def define_runtimes_task
+      task "runtimes" do
+        require 'warbler/runtime_pool'
+        Rake::Task["#{name}:jar"].enhance { Warbler::RuntimePool.new(config).configure(jar) }
+      end
+    end
+
     def define_files_task
       task "files" do
         jar.apply(config)
@@ -130,7 +151,16 @@ module Warbler
       task "debug" => "files" do
         require 'yaml'
         puts config.dump
-        jar.files.each {|k,v| puts "#{k} -> #{String === v ? v : '<blob>'}"}
+        dump_files = lambda do |files, prefix|
+          files.each do |k,v|
+            case v
+            when String then puts "#{prefix}#{k} -> #{v}"
+            when Warbler::Jar then puts "#{prefix}#{k} -> <jar>"; dump_files.call(v.files, "#{prefix}#{k}!/")
+            else puts "#{prefix}#{k} -> <blob>"
+            end
+          end
+        end
+        dump_files.call(jar.files, '')
       end
       task "debug:includes" => "files" do
         puts "", "included files:"
@@ -35,9 +35,11 @@ module Warbler
         # config.gems.clear allow to add `config.gems` on top of those bundled
         config.gem_dependencies = false # Bundler takes care of these
         config.bundler = {} if config.bundler == true
+        load_paths = []
 
         bundler_specs.each do |spec|
           spec = to_spec(spec)
+          load_paths.concat bundler_load_paths(spec) if config.bundler_snapshot
 
           case spec.source
           when ::Bundler::Source::Git
@@ -66,6 +68,7 @@ module Warbler
         config.bundler[:frozen] = ::Bundler.settings[:frozen]
         path = ::Bundler.settings[:path]
         config.excludes += [path, "#{path}/**/*"] if path
+        config.bundler[:load_paths] = load_paths.uniq if config.bundler_snapshot
         config.init_contents << "#{config.warbler_templates}/bundler.erb"
       end
 
@@ -123,6 +126,24 @@ module Warbler
 
       private
 
+      # Load paths (as they are going to be in the archive) of a bundled gem, each either
+      # relative to GEM_HOME (<tt>[:gem_home, path]</tt>) or the archive (<tt>[:root, path]</tt>).
+      def bundler_load_paths(spec)
+        return [] if spec.groups.include?(:warbler_excluded)
+        case spec.source
+        when ::Bundler::Source::Git
+          base = [ :gem_home, "bundler/gems/#{Pathname.new(spec.full_gem_path).relative_path_from(::Bundler.install_path)}" ]
+        when ::Bundler::Source::Path
+          return [] if bundler_source_is_warbled_gem_itself?(spec.source) || !spec.source.path.relative?
+          base = [ :root, apply_pathmaps(config, spec.source.path.to_s, :application) ]
+        else
+          # default gems are not packaged (they're part of jruby-jars)
+          return [] unless File.directory?(spec.full_gem_path)
+          base = [ :gem_home, "gems/#{spec.full_name}" ]
+        end
+        spec.require_paths.map { |path| [ base[0], File.join(base[1], path) ] }
+      end
+
       def bundler_specs
         bundle_without = config.bundle_without.map { |s| s.to_sym }
         definition = ::Bundler.definition
@@ -111,7 +111,7 @@ module Warbler
           jar.files['META-INF/MANIFEST.MF'] = StringIO.new(manifest)
         end
         [ 'JarMain', 'WarMain', main_class ].uniq.each do |klass|
-          jar.files["#{klass}.class"] = jar.entry_in_jar(WARBLER_JAR, "#{klass}.class")
+          jar.add_launcher_class(klass)
         end
       end
 
@@ -121,6 +121,8 @@ module Warbler
         add_runnables jar, webserver.main_class || 'WarMain'
       end
 
+      # The gems jar is written (stored) into the war as a nested archive
+      # while the war is created, there's no tmp/gems.jar to create (and read back).
       def add_gemjar(jar)
         gem_jar = Warbler::Jar.new
         gem_path = Regexp::quote(config.relative_gem_path)
@@ -128,11 +130,10 @@ module Warbler
         gems.each do |k,v|
           gem_jar.files[k.sub(%r{#{gem_path}/}, '')] = v
         end
-        jar.files["WEB-INF/lib/gems.jar"] = "tmp/gems.jar"
         jar.files.reject!{|k,v| k =~ /#{gem_path}/ || k == "WEB-INF/tmp/gems.jar"}
-        mkdir_p "tmp"
         gem_jar.add_manifest
-        gem_jar.create("tmp/gems.jar")
+        gem_jar.ensure_directory_entries
+        jar.files["WEB-INF/lib/gems.jar"] = gem_jar
       end
 
       def move_jars_to_webinf_lib(jar, selector = nil)
@@ -113,15 +113,38 @@ args3 = {{port}}
 args4 = --config
 args5 = {{config}}
 args6 = {{warfile}}
-props = jetty.home,org.eclipse.jetty.util.log.class,org.eclipse.jetty.util.log.stderr.ESCAPE
+props = jetty.home,jetty.base,org.eclipse.jetty.util.log.class,org.eclipse.jetty.util.log.stderr.ESCAPE
 jetty.home = {{webroot}}
+jetty.base = {{webroot}}
 org.eclipse.jetty.util.log.class = org.eclipse.jetty.util.log.StdErrLog
 org.eclipse.jetty.util.log.stderr.ESCAPE = false
 PROPS
     end
   end
 
+  # Jetty embedded by the launcher (WarMain's jetty WebServerLauncher) rather than run through
+  # jetty-runner's main class: the launcher starts and stops the server itself (draining the
+  # requests in flight) and reports when the application is ready.
+  class EmbeddedJettyServer < JettyServer
+    def add(jar)
+      jar.files["WEB-INF/webserver.properties"] ||= StringIO.new(<<-PROPS)
+launcher = jetty
+host = {{host}}
+port = {{port}}
+war = {{warfile}}
+config = {{config}}
+props = jetty.home,jetty.base,org.eclipse.jetty.util.log.class,org.eclipse.jetty.util.log.stderr.ESCAPE
+jetty.home = {{webroot}}
+jetty.base = {{webroot}}
+org.eclipse.jetty.util.log.class = org.eclipse.jetty.util.log.StdErrLog
+org.eclipse.jetty.util.log.stderr.ESCAPE = false
+PROPS
+      super
+    end
+  end
+
   WEB_SERVERS = Hash.new { |hash,_| hash['jetty'] }
   WEB_SERVERS['jetty'] = JettyServer.new
+  WEB_SERVERS['jetty-embedded'] = EmbeddedJettyServer.new
 
 end
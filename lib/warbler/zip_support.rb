@@ -2,8 +2,33 @@ require 'zip'
 
 module Warbler
   class ZipSupport
-    def self.create(filename, &blk)
-      ::Zip::File.open(filename, create: true, &blk)
+    # Creates a zip file, entries are compressed at the given level (when given).
+    # With a timestamp (seconds since the epoch) all entries get the same time and
+    # normalized permissions, for the archive to be reproducible.
+    def self.create(filename, compression_level: nil, timestamp: nil)
+      default_compression = ::Zip.default_compression
+      ::Zip.default_compression = compression_level if compression_level
+      ::Zip::File.open(filename, create: true) do |zipfile|
+        yield zipfile
+        normalize_entries(zipfile, timestamp) if timestamp
+      end
+    ensure
+      ::Zip.default_compression = default_compression
+    end
+
+    def self.normalize_entries(zipfile, timestamp)
+      time = ::Zip::DOSTime.at(timestamp).utc
+      zipfile.each do |entry|
+        entry.time = time
+        entry.unix_perms = entry.directory? ? 0755 : 0644
+      end
+    end
+
+    # A new entry (to be added to the zip file) which is stored without compression.
+    def self.stored_entry(zipfile, name)
+      entry = ::Zip::Entry.new(zipfile.name, name)
+      entry.compression_method = ::Zip::Entry::STORED
+      entry
     end
 
     def self.open(filename, &blk)
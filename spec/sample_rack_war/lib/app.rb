@@ -1,6 +1,7 @@
 class App
 
   def call(env)
+    sleep 3 if env['PATH_INFO'] == '/slow' # still in flight when the server is stopped
     [200, {'Content-Type' => 'text/html'}, 'Hello, World']
   end
 end
@@ -66,6 +66,16 @@ describe Warbler::Jar, "with Bundler" do
       expect(file_list(%r{WEB-INF/Gemfile.lock})).to_not be_empty
     end
 
+    it "sets the bundled gems' load paths in init.rb when bundler_snapshot is set" do
+      use_config do |config|
+        config.bundler_snapshot = true
+      end
+      apply_silently
+      contents = jar.contents('META-INF/init.rb')
+      expect(contents).to include("BUNDLER_LOAD_PATH")
+      expect(contents).to match(%r{File\.join\(ENV\['GEM_HOME'\], 'gems/rspec-core-[^']+/lib'\)})
+    end
+
     it "allows overriding of the gem path when using Bundler" do
       use_config do |config|
         config.gem_path = '/WEB-INF/jewels'
@@ -0,0 +1,61 @@
+#--
+# Copyright (c) 2010-2012 Engine Yard, Inc.
+# Copyright (c) 2007-2009 Sun Microsystems, Inc.
+# This source code is available under the MIT license.
+# See the file LICENSE.txt for details.
+#++
+
+require File.expand_path('../../spec_helper', __FILE__)
+require 'warbler/cds'
+
+describe Warbler::CDS do
+  run_in_directory 'spec/sample_war'
+
+  let(:config) do
+    Warbler::Config.new do |config|
+      config.jar_name = 'warbler'
+      config.cds_java_options = %w(-Dwarbler.extract.cache=/tmp/warbler)
+      config.cds_training_args = %w(-S rake -T)
+    end
+  end
+  let(:cds) { Warbler::CDS.new(config) }
+
+  after :each do
+    rm_f %w(warbler.war warbler.war.jsa)
+  end
+
+  it "writes the CDS archive next to the war" do
+    expect(cds.shared_archive).to eq File.expand_path('warbler.war.jsa')
+  end
+
+  it "trains using the war's absolute path, the configured options and arguments" do
+    command = cds.command
+    expect(command).to include("-XX:ArchiveClassesAtExit=#{File.expand_path('warbler.war.jsa')}")
+    expect(command).to include('-Dwarbler.cds.training=true', '-Dwarbler.extract.cache=/tmp/warbler')
+    expect(command.grep(/-Dwarbler\.extract\.cache/).size).to eq 1
+    expect(command.last(5)).to eq ['-jar', File.expand_path('warbler.war'), '-S', 'rake', '-T']
+  end
+
+  it "trains with the extraction cache next to the war unless configured" do
+    config.cds_java_options = %w(-Xmx512m)
+    expect(cds.command).to include("-Dwarbler.extract.cache=#{File.expand_path('warbler.war.cache')}", '-Xmx512m')
+    config.cds_java_options = %w(-Dwarbler.extract.jars=false)
+    expect(cds.command.grep(/-Dwarbler\.extract\.cache/)).to be_empty
+  end
+
+  it "needs the war to be created first" do
+    expect { cds.train }.to raise_error(/warbler\.war not found/)
+  end
+
+  it "runs the war once" do
+    touch 'warbler.war'
+    expect(cds).to receive(:system).with(*cds.command) { touch 'warbler.war.jsa'; true }
+    silence { expect(cds.train).to eq cds.shared_archive }
+  end
+
+  it "fails when the training run does not dump an archive" do
+    touch 'warbler.war'
+    allow(cds).to receive(:system).and_return false
+    silence { expect { cds.train }.to raise_error(/CDS training run failed/) }
+  end
+end
@@ -24,6 +24,7 @@ describe Warbler::Config do
       expect(config.includes).to be_empty
       expect(config.jar_name.size).to be_positive
       expect(config.override_gem_home).to be true
+      expect(config.stored_entries).to eq Warbler::Config::STORED_ENTRIES
     end
   end
 
@@ -6,6 +6,7 @@
 #++
 
 require File.expand_path('../../spec_helper', __FILE__)
+require 'digest'
 
 describe Warbler::Jar do
   use_fresh_rake_application
@@ -55,6 +56,12 @@ describe Warbler::Jar do
       expect(file_list(%r{^JarMain\.class$})).to_not be_empty
     end
 
+    it "adds the nested classes of JarMain" do
+      apply_silently
+      expect(file_list(%r{^JarMain\$ZipDirectory\.class$})).to_not be_empty
+      expect(file_list(%r{^JarMain\$NestedJarHandler\.class$})).to_not be_empty
+    end
+
     it "adds an init.rb" do
       apply_silently
       expect(file_list(%r{^META-INF/init.rb$})).to_not be_empty
@@ -133,6 +140,247 @@ describe Warbler::Jar do
       end
     end
 
+    it "creates a jar with the configured compression level" do
+      begin
+        use_config do |config|
+          config.jar_name = 'sample'
+          config.compression_level = 0
+        end
+
+        jar.files["foo.txt"] = StringIO.new("foo" * 100)
+        jar.files["bar"] = nil
+
+        silence { jar.create(config) }
+        Warbler::ZipSupport.open("sample.jar") do |zf|
+          expect(zf.entries.map(&:name)).to eq [ 'bar/', 'foo.txt' ]
+          expect(zf.find_entry('foo.txt').compression_method).to eq Zip::Entry::STORED
+          expect(zf.read('foo.txt')).to eq "foo" * 100
+        end
+      ensure
+        rm_f 'sample.jar'
+      end
+    end
+
+    it "streams large entries into the jar" do
+      begin
+        use_config do |config|
+          config.jar_name = 'sample'
+        end
+
+        contents = "0123456789abcdef" * (1024 * 1024) # 16M, above the streaming threshold
+        jar.files["large.txt"] = StringIO.new(contents)
+        jar.files["small.txt"] = StringIO.new("small")
+
+        silence { jar.create(config) }
+        Warbler::ZipSupport.open("sample.jar") do |zf|
+          expect(zf.read('large.txt')).to eq contents
+          expect(zf.read('small.txt')).to eq "small"
+        end
+      ensure
+        rm_f 'sample.jar'
+      end
+    end
+
+    it "stores nested jars and compressed assets without compression" do
+      begin
+        use_config do |config|
+          config.jar_name = 'sample'
+          config.stored_entries += [ /\.dat\z/ ]
+        end
+
+        jar.files["lib/nested.jar"] = StringIO.new("jar" * 100)
+        jar.files["public/logo.PNG"] = StringIO.new("png" * 100)
+        jar.files["data/file.dat"] = StringIO.new("dat" * 100)
+        jar.files["foo.txt"] = StringIO.new("foo" * 100)
+
+        silence { jar.create(config) }
+        Warbler::ZipSupport.open("sample.jar") do |zf|
+          stored = zf.entries.select { |e| e.compression_method == Zip::Entry::STORED }.map(&:name)
+          expect(stored).to include('lib/nested.jar', 'public/logo.PNG', 'data/file.dat')
+          expect(stored).to_not include('foo.txt')
+          expect(zf.read('lib/nested.jar')).to eq "jar" * 100
+        end
+      ensure
+        rm_f 'sample.jar'
+      end
+    end
+
+    it "rebuilds a jar incrementally" do
+      begin
+        File.open("foo.txt", "w") { |f| f << "foo" }
+        File.open("file.txt", "w") { |f| f << "file" }
+
+        use_config do |config|
+          config.jar_name = 'sample'
+          config.incremental = true
+        end
+
+        jar.files["foo.txt"] = "foo.txt"
+        jar.files["file.txt"] = "file.txt"
+        silence { jar.create(config) }
+
+        File.open("file.txt", "w") { |f| f << "changed file" }
+        silence { jar.create(config) }
+
+        expect(File.exist?("sample.jar.prev")).to be false
+        Warbler::ZipSupport.open("sample.jar") do |zf|
+          expect(zf.read('foo.txt')).to eq "foo"
+          expect(zf.read('file.txt')).to eq "changed file"
+          expect(zf.find_entry('META-INF/warbler-entries.idx')).to be_nil
+        end
+        expect(File.read("sample.jar.idx")).to include("foo.txt\t3 ")
+      ensure
+        rm_f ['foo.txt', 'file.txt', 'sample.jar', 'sample.jar.idx']
+      end
+    end
+
+    it "keeps the previous jar when an incremental rebuild fails" do
+      begin
+        File.open("foo.txt", "w") { |f| f << "foo" }
+
+        use_config do |config|
+          config.jar_name = 'sample'
+          config.incremental = true
+        end
+
+        jar.files["foo.txt"] = "foo.txt"
+        silence { jar.create(config) }
+        previous = File.binread("sample.jar")
+
+        allow(jar).to receive(:create_jar) do |path, *|
+          File.open(path, "w") { |f| f << "partial" }
+          raise IOError, "disk full"
+        end
+        expect { silence { jar.create(config) } }.to raise_error(IOError, "disk full")
+
+        expect(File.exist?("sample.jar.prev")).to be false
+        expect(File.binread("sample.jar")).to eq previous
+      ensure
+        rm_f ['foo.txt', 'sample.jar', 'sample.jar.idx']
+      end
+    end
+
+    it "rebuilds a nested jar incrementally" do
+      begin
+        File.open("foo.txt", "w") { |f| f << "foo" }
+        File.open("file.txt", "w") { |f| f << "file" }
+
+        use_config do |config|
+          config.jar_name = 'sample'
+          config.incremental = true
+        end
+
+        build = lambda do
+          nested = Warbler::Jar.new
+          nested.files["foo.txt"] = "foo.txt"
+          nested.files["file.txt"] = "file.txt"
+          archive = Warbler::Jar.new
+          archive.files["lib/nested.jar"] = nested
+          silence { archive.create(config) }
+        end
+        build.call
+
+        # same size and modification time, the entry of the previous build is reused
+        mtime = File.mtime("foo.txt")
+        File.open("foo.txt", "w") { |f| f << "bar" }
+        File.utime(mtime, mtime, "foo.txt")
+        File.open("file.txt", "w") { |f| f << "changed file" }
+        build.call
+
+        expect(File.exist?("sample.jar.prev")).to be false
+        Warbler::ZipSupport.open("sample.jar") do |zf|
+          ::Zip::File.open_buffer(StringIO.new(zf.read('lib/nested.jar'))) do |nested|
+            expect(nested.read('foo.txt')).to eq "foo"
+            expect(nested.read('file.txt')).to eq "changed file"
+            expect(nested.find_entry('META-INF/warbler-entries.idx')).to be_nil
+          end
+        end
+        expect(File.read("sample.jar.idx")).to include("lib/nested.jar!/foo.txt\t3 ")
+      ensure
+        rm_f ['foo.txt', 'file.txt', 'sample.jar', 'sample.jar.idx']
+      end
+    end
+
+    it "writes a nested jar with rubyzip (without JRuby)" do
+      begin
+        File.open("foo.txt", "w") { |f| f << "foo" }
+        nested = Warbler::Jar.new
+        nested.files["foo.txt"] = "foo.txt"
+        nested.files["bar.txt"] = StringIO.new("bar")
+        jar.files["lib/nested.jar"] = nested
+
+        jar.create_jar_with_rubyzip "sample.jar", jar.files
+        Warbler::ZipSupport.open("sample.jar") do |zf|
+          entry = zf.get_entry('lib/nested.jar')
+          expect(entry.compression_method).to eq ::Zip::Entry::STORED
+          ::Zip::File.open_buffer(StringIO.new(zf.read(entry))) do |jf|
+            expect(jf.read('foo.txt')).to eq "foo"
+            expect(jf.read('bar.txt')).to eq "bar"
+          end
+        end
+      ensure
+        rm_f ['foo.txt', 'sample.jar']
+      end
+    end
+
+    it "returns the contents of a nested jar" do
+      nested = Warbler::Jar.new
+      nested.files["bar.txt"] = StringIO.new("bar")
+      jar.files["lib/nested.jar"] = nested
+
+      ::Zip::File.open_buffer(StringIO.new(jar.contents('lib/nested.jar'))) do |jf|
+        expect(jf.read('bar.txt')).to eq "bar"
+      end
+    end
+
+    it "creates a reproducible jar when SOURCE_DATE_EPOCH is set" do
+      begin
+        source_date_epoch, ENV['SOURCE_DATE_EPOCH'] = ENV['SOURCE_DATE_EPOCH'], '1700000000'
+        File.open("foo.txt", "w") { |f| f << "foo" }
+        mkdir_p 'bar'
+
+        use_config do |config|
+          config.jar_name = 'sample'
+        end
+        expect(config.reproducible).to be true
+
+        digests = 2.times.map do |i|
+          File.utime(Time.now - i * 3600, Time.now - i * 3600, "foo.txt")
+          archive = Warbler::Jar.new
+          archive.files["foo.txt"] = "foo.txt"
+          archive.files["bar"] = "bar"
+          archive.files["baz.txt"] = StringIO.new("baz")
+          silence { archive.create(config) }
+          Digest::SHA256.file("sample.jar").hexdigest
+        end
+        expect(digests.uniq.size).to eq 1
+      ensure
+        ENV['SOURCE_DATE_EPOCH'] = source_date_epoch
+        rm_f ['foo.txt', 'sample.jar']
+        rm_rf 'bar'
+      end
+    end
+
+    it "packages a feature index when feature_index is set" do
+      begin
+        use_config do |config|
+          config.jar_name = 'sample'
+          config.feature_index = true
+        end
+        apply_silently
+        expect(jar.contents('META-INF/init.rb')).to include("module FeatureIndex")
+
+        silence { jar.create(config) }
+        Warbler::ZipSupport.open("sample.jar") do |zf|
+          features = zf.read(Warbler::Jar::FEATURE_INDEX).split("\n")
+          expect(features).to include('sample_jar/lib/sample_jar')
+          expect(features.grep(/\.rb\z/)).to be_empty
+        end
+      ensure
+        rm_f 'sample.jar'
+      end
+    end
+
     context "with a .gemspec" do
       it "detects a Gemspec trait" do
         expect(config.traits).to include(Warbler::Traits::Gemspec)
@@ -144,6 +392,15 @@ describe Warbler::Jar do
         expect(file_list(%r{^specifications/rubyzip.*\.gemspec})).to_not be_empty
       end
 
+      it "packages a snapshot of the gem specifications when gemspec_snapshot is set" do
+        config.gemspec_snapshot = true
+        apply_silently
+        version, specs = Marshal.load(jar.contents('specifications/warbler-specs.marshal'))
+        expect(version).to eq Gem.marshal_version
+        expect(specs.map(&:name)).to include('rubyzip')
+        expect(jar.contents('META-INF/init.rb')).to include("module GemspecSnapshot")
+      end
+
       it "sets load paths in init.rb" do
         jar.add_init_file(config)
         contents = jar.contents('META-INF/init.rb')
@@ -164,6 +421,103 @@ describe Warbler::Jar do
         expect(jar.contents('sample_jar/lib/sample_jar.rb')).to match /load __FILE__\.sub/
       end
 
+      it "adds an index of compiled files to init.rb" do
+        config.compiled_ruby_files = %w(lib/sample_jar.rb)
+        jar.compile(config)
+        apply_silently
+        contents = jar.contents('META-INF/init.rb')
+        expect(contents).to include("module CompiledRequire")
+        expect(contents).to include("\nsample_jar/lib/sample_jar.rb\n")
+        expect(contents).to include("alias_method :warbler_compiled_require, :require")
+      end
+
+      it "notices compiled files removed from $LOADED_FEATURES" do
+        config.compiled_ruby_files = %w(lib/sample_jar.rb)
+        jar.compile(config)
+        apply_silently
+        source = jar.contents('META-INF/init.rb')[/^module Warbler\n  module CompiledRequire\n.*?^end\n/m]
+        compiled = Module.new.tap { |m| m.module_eval(source) }::Warbler::CompiledRequire
+
+        features = %w(/warbler/spec/a.rb /warbler/spec/b.rb /warbler/spec/c.rb)
+        begin
+          $LOADED_FEATURES.push(*features[0, 2])
+          expect(compiled.loaded?(features[1])).to be true
+          # removed and another one added, the size stays the same
+          $LOADED_FEATURES.delete(features[1])
+          $LOADED_FEATURES << features[2]
+          expect(compiled.loaded?(features[1])).to be false
+          expect(compiled.loaded?(features[2])).to be true
+          expect(compiled.loaded?(features[0])).to be true
+        ensure
+          features.each { |f| $LOADED_FEATURES.delete(f) }
+        end
+      end
+
+      it "resolves relative compiled features on the $LOAD_PATH" do
+        config.compiled_ruby_files = %w(lib/sample_jar.rb)
+        jar.compile(config)
+        apply_silently
+        source = jar.contents('META-INF/init.rb')[/^module Warbler\n  module CompiledRequire\n.*?^end\n/m]
+        compiled = Module.new.tap { |m| m.module_eval(source) }::Warbler::CompiledRequire
+
+        require 'tmpdir'
+        Dir.mktmpdir do |dir|
+          compiled::ROOTS.replace [ File.join(dir, 'app') ]
+          mkdir_p [ File.join(dir, 'app/sample_jar/lib'), File.join(dir, 'other') ]
+          touch [ File.join(dir, 'app/sample_jar/lib/sample_jar.rb'), File.join(dir, 'other/sample_jar.rb') ]
+          begin
+            $LOAD_PATH.unshift File.join(dir, 'app/sample_jar/lib')
+            expect(compiled.feature('sample_jar')).to eq File.join(dir, 'app/sample_jar/lib/sample_jar.rb')
+            expect(compiled.feature('set')).to be_nil # not a compiled file, not looked up
+
+            $LOAD_PATH.unshift File.join(dir, 'other') # found first outside of the archive
+            expect(compiled.feature('sample_jar')).to be_nil
+          ensure
+            $LOAD_PATH.delete File.join(dir, 'app/sample_jar/lib')
+            $LOAD_PATH.delete File.join(dir, 'other')
+          end
+        end
+      end
+
+      it "compiles .class files into a temporary directory rather than next to the sources" do
+        config.compiled_ruby_files = %w(lib/sample_jar.rb)
+        jar.compile(config)
+        expect(File.exist?('lib/sample_jar.class')).to be false
+        class_file = jar.files['sample_jar/lib/sample_jar.class']
+        expect(class_file).to end_with '/lib/sample_jar.class'
+        expect(File.binread(class_file, 4)).to eq "\xCA\xFE\xBA\xBE".b
+        jar.remove_compiled_classes
+        expect(File.exist?(class_file)).to be false
+      end
+
+      it "compiles files outside of the application root" do
+        require 'tmpdir'
+        Dir.mktmpdir do |dir|
+          outside = File.join(dir, 'gems', 'outside.rb')
+          mkdir_p File.dirname(outside)
+          File.open(outside, 'w') { |f| f << "puts 'outside'\n" }
+          config.compiled_ruby_files = [ 'lib/sample_jar.rb', outside ]
+          jar.compile(config)
+
+          class_file = jar.files.values.grep(String).find { |f| f.end_with?('/outside.class') }
+          expect(class_file).to_not be_nil
+          expect(class_file).to_not start_with dir
+          expect(class_file).to end_with File.join(dir, 'gems', 'outside.class').sub(%r{\A([A-Za-z]:)?/}, '/')
+          expect(File.binread(class_file, 4)).to eq "\xCA\xFE\xBA\xBE".b
+          expect(File.exist?(File.join(dir, 'gems', 'outside.class'))).to be false
+          jar.remove_compiled_classes
+        end
+      end
+
+      it "takes unchanged compiled files from the jrubyc cache" do
+        config.compiled_ruby_files = %w(lib/sample_jar.rb)
+        config.jrubyc_cache = 'tmp/jrubyc-cache'
+        expect(capture { jar.compile(config) }).to include("0 hits, 1 misses")
+        cached = Warbler::Jar.new
+        expect(capture { cached.compile(config) }).to include("1 hits, 0 misses")
+        expect(File.file?(cached.files['sample_jar/lib/sample_jar.class'])).to be true
+      end
+
       it "includes only specified dirs" do
         config.dirs = %w(bin)
         jar.compile(config)
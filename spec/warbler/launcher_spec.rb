@@ -0,0 +1,295 @@
+#--
+# Copyright (c) 2010-2012 Engine Yard, Inc.
+# Copyright (c) 2007-2009 Sun Microsystems, Inc.
+# This source code is available under the MIT license.
+# See the file LICENSE.txt for details.
+#++
+
+require File.expand_path('../../spec_helper', __FILE__)
+require 'open3'
+require 'digest'
+require 'net/http'
+require 'socket'
+
+describe Warbler::Jar, "launched with java -jar" do
+  use_fresh_rake_application
+  use_fresh_environment
+
+  let(:java_options) do
+    %w(--enable-native-access=ALL-UNNAMED --sun-misc-unsafe-memory-access=allow -XX:+IgnoreUnrecognizedVMOptions)
+  end
+
+  def use_config(&block)
+    @extra_config = block
+  end
+
+  let(:config) { Warbler::Config.new {|c| @extra_config.call(c) if @extra_config } }
+
+  def create_archive(name)
+    jar = Warbler::Jar.new
+    silence do
+      jar.apply(config)
+      jar.create(name)
+    end
+    name
+  end
+
+  # Runs the archive (with debug output and the given system properties), returns its output.
+  def java_jar(archive, properties, *args)
+    properties = { 'warbler.debug' => 'true' }.merge(properties).map { |k, v| "-D#{k}=#{v}" }
+    stdout, stderr, status = Open3.capture3('java', *java_options, *properties, '-jar', archive, *args)
+    expect(status.success?).to be(true), "#{archive} #{args.join(' ')} failed:\n#{stdout}#{stderr}"
+    stdout
+  end
+
+  # Extracts into a cache directory of its own so the extracted tree can be inspected.
+  def extract(archive, label, properties = {}, *args)
+    cache = File.expand_path("tmp/extract-#{label}")
+    output = java_jar(archive, properties.merge('warbler.extract.cache' => cache), *args)
+    root = Dir["#{cache}/*/root"].first
+    expect(root).to_not be_nil
+    [ output, root ]
+  end
+
+  def class_path(output, root)
+    urls = output[/scripting container class loader urls: \[(.*)\]$/, 1]
+    expect(urls).to_not be_nil
+    urls.split(', ').map { |url| url.sub("file:#{root}/", '') }.sort
+  end
+
+  # path => SHA-1 of every extracted file (nil for directories)
+  def extracted_tree(root)
+    Dir.glob('**/*', base: root).sort.each_with_object({}) do |path, tree|
+      file = File.join(root, path)
+      tree[path] = File.file?(file) ? Digest::SHA1.file(file).hexdigest : nil
+    end
+  end
+
+  context "in a jar project" do
+    run_in_directory "spec/sample_jar"
+    cleanup_temp_files include: 'launcher.jar'
+
+    let(:archive) { create_archive('launcher.jar') }
+
+    it "extracts the same class-path with one and with many threads" do
+      serial_output, serial_root = extract(archive, 'serial', 'warbler.extract.threads' => '1')
+      parallel_output, parallel_root = extract(archive, 'parallel', 'warbler.extract.threads' => '4')
+
+      expect(serial_output).to include("Hello World!")
+      expect(parallel_output).to include("Hello World!")
+      expect(parallel_output).to match(/extracting \d+ entries using \d+ threads/)
+      expect(serial_output).to_not match(/extracting \d+ entries using/)
+      expect(class_path(parallel_output, parallel_root)).to eq class_path(serial_output, serial_root)
+      expect(extracted_tree(parallel_root)).to eq extracted_tree(serial_root)
+    end
+
+    it "extracts with the default number of threads" do
+      output, root = extract(archive, 'default')
+      expect(output).to include("Hello World!")
+      expect(class_path(output, root)).to_not be_empty
+      expect(class_path(output, root)).to all(match(/\.jar\z/))
+    end
+
+    it "writes its startup profile as JSON" do
+      require 'json'
+      profile_file = File.expand_path('tmp/profile.json')
+      mkdir_p File.dirname(profile_file)
+      output = java_jar(archive, 'warbler.debug' => 'false', 'warbler.profile' => profile_file)
+      expect(output).to include("Hello World!")
+
+      profile = JSON.parse(File.read(profile_file))
+      expect(File.basename(profile['archive'])).to eq 'launcher.jar'
+      expect(profile['phases'].keys).to eq %w(extract runtime run)
+      expect(profile['phases'].values).to all(be_an(Integer).and(be >= 0))
+      expect(profile['total']).to be >= profile['phases'].values.sum
+      expect(profile['extracted_entries']).to be > 0
+      expect(profile['extracted_bytes']).to be > 0
+      expect(profile['class_path_urls']).to be > 0
+    end
+
+    it "copies stored jars byte for byte" do
+      _, root = extract(archive, 'serial', 'warbler.extract.threads' => '1')
+      stored = 0
+      Warbler::ZipSupport.open(archive) do |zip|
+        zip.glob('META-INF/lib/*.jar').each do |entry|
+          expect(entry.compression_method).to eq ::Zip::Entry::STORED
+          extracted = File.join(root, File.basename(entry.name))
+          expect(Digest::SHA1.file(extracted).hexdigest).to eq Digest::SHA1.hexdigest(entry.get_input_stream.read)
+          stored += 1
+        end
+      end
+      expect(stored).to be > 0
+    end
+  end
+
+  context "in a war project" do
+    run_in_directory "spec/sample_war"
+    cleanup_temp_files include: 'lib/launcher_probe.rb'
+
+    let(:probe_script) { "puts 'probed'" }
+
+    before :each do
+      File.open('lib/launcher_probe.rb', 'w') { |f| f << "#!/usr/bin/env ruby\n#{probe_script}\n" }
+      use_config { |config| config.features << 'runnable' }
+    end
+
+    let(:archive) { create_archive('launcher.war') }
+    let(:probe) { %w(-S lib/launcher_probe.rb) }
+
+    it "extracts the same tree with one and with many threads" do
+      serial_output, serial_root = extract(archive, 'serial', { 'warbler.extract.threads' => '1' }, *probe)
+      parallel_output, parallel_root = extract(archive, 'parallel', { 'warbler.extract.threads' => '4' }, *probe)
+
+      expect(serial_output).to include("probed")
+      expect(parallel_output).to include("probed")
+      expect(class_path(parallel_output, parallel_root)).to eq class_path(serial_output, serial_root)
+      expect(extracted_tree(parallel_root)).to eq extracted_tree(serial_root)
+      expect(extracted_tree(serial_root).keys).to include('lib/launcher_probe.rb', 'public/index.html')
+    end
+
+    it "leaves out public assets with selective extraction" do
+      output, root = extract(archive, 'full', {}, *probe)
+      selective_output, selective_root = extract(archive, 'selective', { 'warbler.extract.selective' => 'true' }, *probe)
+
+      expect(selective_output).to include("probed")
+      expect(class_path(selective_output, selective_root)).to eq class_path(output, root)
+      expect(extracted_tree(root).keys.grep(%r{\Apublic/})).to_not be_empty
+      expect(extracted_tree(selective_root).keys.grep(%r{\Apublic/})).to be_empty
+      expect(extracted_tree(selective_root).keys).to include('lib/launcher_probe.rb')
+    end
+
+    context "with a file with % in its name" do
+      cleanup_temp_files include: 'lib/percent%20probe.rb'
+
+      let(:probe_script) { "require_relative 'percent%20probe'" }
+
+      before :each do
+        File.open('lib/percent%20probe.rb', 'w') { |f| f << "puts \"loaded \#{File.basename(__FILE__)}\"\n" }
+      end
+
+      it "extracts the file under its own name and loads it" do
+        output, root = extract(archive, 'percent', {}, *probe)
+        expect(output).to include("loaded percent%20probe.rb\n")
+        expect(File.read(File.join(root, 'lib/percent%20probe.rb'))).to include('loaded')
+        expect(extracted_tree(root).keys.grep(/percent/)).to eq ['lib/percent%20probe.rb']
+      end
+    end
+
+    context "with jars loaded in place" do
+      let(:probe_script) do
+        <<-RUBY
+require 'jruby'
+ruby = JRuby.runtime.getClass
+loader = ruby.getClassLoader
+resource = loader.getResource('org/jruby/Ruby.class')
+sibling = java.net.URL.new(resource, 'RubyModule.class')
+puts "class-path: \#{loader.getURLs.map(&:getProtocol).uniq.join(',')}"
+puts "code source: \#{ruby.getProtectionDomain.getCodeSource.getLocation}"
+puts "resource: \#{resource}"
+puts "sibling: \#{sibling.openStream.to_io.read(4).unpack('H*').first}"
+        RUBY
+      end
+
+      it "loads classes and resources from the nested jars" do
+        output = java_jar(archive, { 'warbler.extract.jars' => 'false' }, *probe)
+        expect(output).to include("class-path: warbler\n")
+        expect(output).to match(%r{^code source: warbler:/WEB-INF/lib/jruby-core[^/]*\.jar!/$})
+        expect(output).to match(%r{^resource: warbler:/WEB-INF/lib/jruby-core[^/]*\.jar!/org/jruby/Ruby\.class$})
+        expect(output).to include("sibling: cafebabe\n")
+      end
+    end
+  end
+
+  context "in an executable rack war" do
+    run_in_directory "spec/sample_rack_war"
+    cleanup_temp_files except: '**/config.ru', include: ['launcher.war', 'launcher.ready']
+
+    before :each do
+      use_config do |config|
+        config.features << 'executable'
+        config.webserver = 'jetty-embedded' # the jetty launcher drains requests in flight
+      end
+    end
+
+    let(:archive) { create_archive('launcher.war') }
+    let(:port) { free_port }
+    let(:health_port) { free_port }
+    let(:ready_file) { File.expand_path('launcher.ready') }
+
+    def free_port
+      server = TCPServer.new('127.0.0.1', 0)
+      server.addr[1]
+    ensure
+      server.close if server
+    end
+
+    # nil unless the server responds
+    def http_get(port, path)
+      Net::HTTP.start('127.0.0.1', port, open_timeout: 1, read_timeout: 30) { |http| http.get(path) }
+    rescue SystemCallError, IOError, Timeout::Error
+      nil
+    end
+
+    def status(port, path)
+      response = http_get(port, path)
+      response && response.code.to_i
+    end
+
+    def wait_until(timeout = 120)
+      deadline = Time.now + timeout
+      sleep 0.2 until yield || Time.now > deadline
+      yield
+    end
+
+    # Runs the war in the background (yielding its pid) until it exits, returns its output.
+    def serve(archive, properties = {})
+      properties = { 'warbler.debug' => 'true', 'warbler.port' => port, 'warbler.health.port' => health_port,
+                     'warbler.ready_file' => ready_file }.merge(properties).map { |k, v| "-D#{k}=#{v}" }
+      Open3.popen2e('java', *java_options, *properties, '-jar', archive) do |stdin, output, wait|
+        stdin.close
+        reader = Thread.new { output.read }
+        begin
+          yield wait.pid
+        ensure
+          Process.kill('TERM', wait.pid) if wait.alive?
+          Process.kill('KILL', wait.pid) unless wait.join(60)
+        end
+        reader.value
+      end
+    end
+
+    it "reports readiness on its health endpoint" do
+      serve(archive) do
+        expect(wait_until { status(health_port, '/live') == 200 }).to be true
+        # while the application boots /ready is never 200 before the ready file exists
+        early = []
+        expect(wait_until do
+          code = status(health_port, '/ready')
+          early << code unless File.exist?(ready_file)
+          code == 200
+        end).to be true
+        expect(early).to all(eq 503)
+        expect(File.read(ready_file)).to include('launcher.war')
+        expect(http_get(port, '/').body).to include('Hello, World')
+        expect(status(health_port, '/ready')).to eq 200
+      end
+      expect(File.exist?(ready_file)).to be false
+    end
+
+    it "stops accepting, then drains requests in flight before it exits" do
+      output = serve(archive, 'warbler.drain.timeout' => '20') do |pid|
+        expect(wait_until { status(health_port, '/ready') == 200 }).to be true
+        slow = Thread.new { http_get(port, '/slow') }
+        sleep 1 # the request is in flight
+
+        Process.kill('TERM', pid)
+        expect(wait_until(10) { status(health_port, '/ready') != 200 }).to be true
+        expect(wait_until(5) { !File.exist?(ready_file) }).to be true
+        expect(slow.alive?).to be true # still served after the server stopped being ready
+        expect(slow.value).to_not be nil
+        expect(slow.value.body).to include('Hello, World')
+      end
+      expect(output).to include("stopping webserver (draining requests for up to 20000ms)")
+    end
+  end
+end
@@ -0,0 +1,106 @@
+#--
+# Copyright (c) 2010-2012 Engine Yard, Inc.
+# Copyright (c) 2007-2009 Sun Microsystems, Inc.
+# This source code is available under the MIT license.
+# See the file LICENSE.txt for details.
+#++
+
+require File.expand_path('../../spec_helper', __FILE__)
+require 'warbler/runtime_pool'
+
+describe Warbler::RuntimePool do
+  run_in_directory 'spec/sample_war'
+  cleanup_temp_files
+
+  let(:config) do
+    Warbler::Config.new do |config|
+      config.runtime_pool_heap = 2048
+      config.runtime_pool_cores = 8
+    end
+  end
+  let(:pool) { Warbler::RuntimePool.new(config) }
+  let(:jar) { Warbler::Jar.new }
+
+  def create_archive
+    silence do
+      jar.apply(config)
+      jar.create(config)
+    end
+    pool.archive
+  end
+
+  def measurement(runtime_mb, boot_seconds, base_mb = 100)
+    { 'base_heap' => base_mb * 1024 * 1024, 'runtime_heap' => runtime_mb * 1024 * 1024,
+      'boot_seconds' => boot_seconds }
+  end
+
+  it "fits the runtimes into the heap" do
+    # (2048MB * 0.75 - 100MB) / 300MB
+    expect(pool.recommend(measurement(300, 2))).to eq(:min => 3, :max => 4, :init_threads => 3)
+  end
+
+  it "recommends at most a runtime per core" do
+    expect(pool.recommend(measurement(50, 2))).to eq(:min => 4, :max => 8, :init_threads => 4)
+  end
+
+  it "keeps all runtimes booted for a slow booting application" do
+    expect(pool.recommend(measurement(300, 20))[:min]).to eq 4
+  end
+
+  it "recommends at least one runtime" do
+    expect(pool.recommend(measurement(4096, 2))).to eq(:min => 1, :max => 1, :init_threads => 1)
+  end
+
+  it "boots the application from the created archive with the JRuby it packages" do
+    archive = create_archive
+    expect(IO).to receive(:popen) do |env, command, options|
+      webinf = options[:chdir]
+      expect(webinf).to end_with 'WEB-INF'
+      expect(File.exist?(File.join(webinf, 'config/environment.rb'))).to be true
+      expect(Dir[File.join(webinf, 'lib/jruby-core*.jar')]).to_not be_empty
+      expect(command[1..3]).to eq ['-cp', File.join(webinf, 'lib', '*'), 'org.jruby.Main']
+      expect(command.last).to end_with 'META-INF/init.rb'
+      expect(File.exist?(command.last)).to be true
+      expect(env['RAILS_ENV']).to eq 'production'
+      `true` # the measurement succeeded ($?)
+      %({"base_heap":1,"runtime_heap":2,"boot_seconds":3}\n)
+    end
+    measurement = nil
+    silence { measurement = pool.measure(archive) }
+    expect(measurement).to eq('base_heap' => 1, 'runtime_heap' => 2, 'boot_seconds' => 3)
+  end
+
+  it "sets the pool context parameters" do
+    allow(pool).to receive(:measure).and_return measurement(300, 2)
+    expect(pool).to receive(:update).with(jar)
+    silence { pool.configure(jar) }
+    params = config.webxml.context_params
+    expect(params['jruby.min.runtimes']).to eq '3'
+    expect(params['jruby.max.runtimes']).to eq '4'
+    expect(params['jruby.runtime.init.threads']).to eq '3'
+  end
+
+  it "does not change a configured pool" do
+    config.webxml.jruby.min.runtimes = 1
+    config.webxml.jruby.max.runtimes = 1
+    expect(pool).to_not receive(:measure)
+    silence { pool.configure(jar) }
+    expect(config.webxml.context_params['jruby.max.runtimes']).to eq '1'
+  end
+
+  it "re-creates the archive with the pool in its web.xml" do
+    archive = create_archive
+    config.webxml.jruby.min.runtimes = 3
+    config.webxml.jruby.max.runtimes = 4
+    silence { pool.update(jar) }
+
+    Warbler::ZipSupport.open(archive) do |zf|
+      webxml = zf.read('WEB-INF/web.xml')
+      expect(webxml).to match %r{<param-name>jruby.min.runtimes</param-name>\s*<param-value>3</param-value>}
+      expect(webxml).to match %r{<param-name>jruby.max.runtimes</param-name>\s*<param-value>4</param-value>}
+      expect(zf.read('META-INF/init.rb')).to_not be_empty
+    end
+    expect(File.exist?("#{archive}.idx")).to be false
+    expect(File.exist?("#{archive}.prev")).to be false
+  end
+end
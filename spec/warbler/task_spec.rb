@@ -52,11 +52,47 @@ describe Warbler::Task do
     expect(File.exist?(war_file)).to eq false
   end
 
+  it "should remove the trained CDS archive when cleaning" do
+    touch "#{config.jar_name}.war.jsa"
+
+    run_task "warble:clean"
+    expect(File.exist?("#{config.jar_name}.war.jsa")).to eq false
+  end
+
+  it "should remove the incremental build index when cleaning" do
+    touch "#{config.jar_name}.war.idx"
+
+    run_task "warble:clean"
+    expect(File.exist?("#{config.jar_name}.war.idx")).to eq false
+  end
+
   it "should define a make_gemjar task for storing gems in a jar file" do
     silence { run_task "warble:gemjar"; run_task "warble:files" }
-    expect(File.exist?("tmp/gems.jar")).to eq true
+    expect(File.exist?("tmp/gems.jar")).to eq false
     expect(warble_task.jar.files.keys).to_not include(%r{WEB-INF\/gems})
-    expect(warble_task.jar.files.keys).to include("WEB-INF/lib/gems.jar")
+    expect(warble_task.jar.files["WEB-INF/lib/gems.jar"]).to be_kind_of(Warbler::Jar)
+  end
+
+  it "should write the gems jar into the war as a nested (stored) jar" do
+    config.features << "gemjar"
+    silence { run_task "warble" }
+    Warbler::ZipSupport.open("#{config.jar_name}.war") do |zf|
+      entry = zf.get_entry("WEB-INF/lib/gems.jar")
+      expect(entry.compression_method).to eq ::Zip::Entry::STORED
+      gems_jar = zf.get_input_stream(entry) { |io| io.read }
+      ::Zip::File.open_buffer(StringIO.new(gems_jar)) do |gems|
+        expect(gems.find_entry("META-INF/MANIFEST.MF")).to_not be nil
+        expect(gems.entries.map(&:name)).to include(%r{^specifications/rake-.*\.gemspec$})
+      end
+    end
+    expect(File.exist?("tmp/gems.jar")).to eq false
+  end
+
+  it "should list the entries of the gems jar in the debug task" do
+    output = capture { run_task "warble:gemjar"; run_task "warble:debug" }
+    expect(output).to include("WEB-INF/lib/gems.jar -> <jar>")
+    expect(output).to match(%r{^WEB-INF/lib/gems\.jar!/specifications/rake-.*\.gemspec -> })
+    expect(output).to_not include("gems.jar -> <blob>")
   end
 
   it "should define a war task for bundling up everything" do
@@ -143,6 +179,7 @@ describe Warbler::Task do
     config.features << "compiled"
     silence { run_task "warble" }
     expect(File.exist?('app/helpers/application_helper.class')).to be false
+    expect(File.exist?('tmp/jrubyc')).to be false
   end
 
   context "where symlinks are available" do
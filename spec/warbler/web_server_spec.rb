@@ -62,13 +62,38 @@ describe Warbler::JettyServer do
               .to_h { |line| line.split(' = ', 2) }
 
     expect(props.keys.to_set).to eql Set.new(
-      ['mainclass', 'args', 'args0', 'args1', 'args2', 'args3', 'args4', 'args5', 'args6', 'props', 'jetty.home',
+      ['mainclass', 'args', 'args0', 'args1', 'args2', 'args3', 'args4', 'args5', 'args6', 'props', 'jetty.home', 'jetty.base',
        'org.eclipse.jetty.util.log.class', 'org.eclipse.jetty.util.log.stderr.ESCAPE']
     )
 
     expect(props['mainclass']).to eq 'org.eclipse.jetty.runner.Runner'
-    expect(props['props']).to eq 'jetty.home,org.eclipse.jetty.util.log.class,org.eclipse.jetty.util.log.stderr.ESCAPE'
+    expect(props['props']).to eq 'jetty.home,jetty.base,org.eclipse.jetty.util.log.class,org.eclipse.jetty.util.log.stderr.ESCAPE'
+    expect(props['jetty.base']).to eq '{{webroot}}'
     expect(props['org.eclipse.jetty.util.log.class']).to eq 'org.eclipse.jetty.util.log.StdErrLog'
     expect(props['org.eclipse.jetty.util.log.stderr.ESCAPE']).to eq 'false'
   end
-end
\ No newline at end of file
+end
+
+describe Warbler::EmbeddedJettyServer do
+
+  it "configures the launcher to embed jetty" do
+    files = {}
+    jar = double('jar file')
+    allow(jar).to receive(:files).and_return files
+
+    Warbler::WEB_SERVERS['jetty-embedded'].add(jar)
+    expect(files['WEB-INF/webserver.jar']).to match /jetty-runner-9\.4.*\.jar/
+
+    props = files['WEB-INF/webserver.properties']
+              .string
+              .each_line(chomp: true)
+              .to_h { |line| line.split(' = ', 2) }
+
+    expect(props['launcher']).to eq 'jetty'
+    expect(props['war']).to eq '{{warfile}}'
+    expect(props['port']).to eq '{{port}}'
+    expect(props['config']).to eq '{{config}}'
+    expect(files['WEB-INF/webserver.xml']).to_not be nil
+    expect(props).to_not include('mainclass')
+  end
+end
@@ -26,6 +26,8 @@ Warbler::Config.new(forced_traits: defined?(forced_traits) ? forced_traits : nil
   # - *executable*: embed a web server and make the war executable
   # - *runnable*: allows to run bin scripts e.g. `java -jar my.war -S rake -T`
   # - *compiled*: compile .rb files to .class files
+  # - *runtimes*: boot the application once and size the runtime pool from its
+  #   boot time and heap usage (see config.runtime_pool_heap)
   # config.features = %w(gemjar)
 
   # Application directories to be included in the webapp.
@@ -62,6 +64,10 @@ Warbler::Config.new(forced_traits: defined?(forced_traits) ? forced_traits : nil
   # Defaults to ["development", "test", "assets"].
   # config.bundle_without = []
 
+  # Resolve the bundle when packaging and set the load paths of the bundled gems
+  # in init.rb, instead of resolving the Gemfile (Bundler.setup) on every start.
+  # config.bundler_snapshot = true
+
   # Other gems to be included. If you don't use Bundler or a gemspec
   # file, you need to tell Warbler which gems your application needs
   # so that they can be packaged in the archive.
@@ -117,9 +123,38 @@ Warbler::Config.new(forced_traits: defined?(forced_traits) ? forced_traits : nil
   # Ignored unless compile feature is used.
   # config.compile_gems = false
 
+  # Directory to cache compiled .class files in, unchanged Ruby files are not
+  # compiled again by subsequent builds. Ignored unless compile feature is used.
+  # config.jrubyc_cache = File.expand_path("~/.warbler/jrubyc")
+
   # When set it specify the bytecode version for compiled class files
   # config.bytecode_version = "1.8"
 
+  # Deflate compression level (0-9) for the archive entries, 0 stores entries
+  # uncompressed. Defaults to the zlib default (6).
+  # config.compression_level = 1
+
+  # Regular expressions matching archive entries to be stored without compression,
+  # e.g. nested jars or already compressed assets. Defaults to Config::STORED_ENTRIES.
+  # config.stored_entries += [ /\.mp4\z/ ]
+
+  # Reuse (already compressed) entries of the previously built archive for files
+  # that did not change, speeds up repeated builds of large archives.
+  # config.incremental = true
+
+  # Produce the same archive (byte for byte) from the same input, entry times are
+  # set to SOURCE_DATE_EPOCH (or 1980-01-01). Defaults to true if SOURCE_DATE_EPOCH
+  # is set.
+  # config.reproducible = true
+
+  # Package an index of Ruby files, used at runtime to resolve required features
+  # without probing every gem's load path (speeds up booting large applications).
+  # config.feature_index = true
+
+  # Package a (marshalled) snapshot of all gem specifications, loaded at runtime in
+  # one read instead of evaluating every .gemspec file.
+  # config.gemspec_snapshot = true
+
   # When set to true, Warbler will override the value of ENV['GEM_HOME'] even it
   # has already been set. When set to false it will use any existing value of
   # GEM_HOME if it is set.
@@ -150,6 +185,7 @@ Warbler::Config.new(forced_traits: defined?(forced_traits) ? forced_traits : nil
   # Embedded webserver to use with the 'executable' feature. Currently supported
   # webservers are:
   # - *jetty* - Embedded Jetty from Eclipse
+  # - *jetty-embedded* - Jetty started (and stopped, draining requests) by the launcher
   # config.webserver = 'jetty'
 
   # Path to the pre-bundled gem directory inside the war file. Default
@@ -200,6 +236,18 @@ Warbler::Config.new(forced_traits: defined?(forced_traits) ? forced_traits : nil
   # config.webxml.jruby.min.runtimes = 2
   # config.webxml.jruby.max.runtimes = 4
 
+  # Heap (MB) and number of cores the runtimes feature sizes the runtime pool for
+  # (unless the values above are set).
+  # config.runtime_pool_heap = 2048
+  # config.runtime_pool_cores = 4
+
+  # JVM options and arguments of the training run of `warble cds`, which writes a
+  # Class Data Sharing archive (my.war.jsa) the launcher starts with when run with
+  # -Dwarbler.cds=true. Use the launcher options the archive runs with, CDS needs a
+  # stable extraction layout (my.war.cache unless an extraction cache is set).
+  # config.cds_java_options = %w(-Dwarbler.extract.cache=/var/cache/warbler)
+  # config.cds_training_args = %w(-S rake -T)
+
   # JNDI data source name
   # config.webxml.jndi = 'jdbc/rails'
 end